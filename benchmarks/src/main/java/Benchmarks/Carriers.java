@@ -0,0 +1,78 @@
+package Benchmarks;
+
+import Server.PixelRaster;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.SplittableRandom;
+
+/**
+ * Loads the images the benchmarks run on. Names ending in .jpg are the carriers bundled with the server, names like
+ * synthetic-12 are random noise images of that many megapixels and names like tiny-6 are noise images that many
+ * pixels on a side. The bundled carriers are read from
+ * ../src/main/resources/ unless -Dstega.resources says otherwise.
+ */
+class Carriers {
+
+    static final String RESOURCES = System.getProperty("stega.resources", "../src/main/resources/");
+
+    /**
+     * @param name A bundled carrier like dogs.jpg, synthetic-N for an N megapixel noise image or tiny-N for an N by N
+     *             one
+     * @return The image in a packed int layout, like the server's carrier cache holds them
+     */
+    static BufferedImage load(String name) throws IOException {
+        if (name.startsWith("synthetic-")) {
+            return noise(Integer.parseInt(name.substring("synthetic-".length())));
+        }
+        if (name.startsWith("tiny-")) {
+            int side = Integer.parseInt(name.substring("tiny-".length()));
+            return noise(side, side, side);
+        }
+        return PixelRaster.toPackedInt(ImageIO.read(file(name)));
+    }
+
+    static File file(String name) {
+        return new File(RESOURCES + name);
+    }
+
+    /**
+     * A 4:3 image of random pixels with about the given number of megapixels
+     */
+    static BufferedImage noise(int megapixels) {
+        int width = (int) Math.sqrt(megapixels * 1000000.0 * 4 / 3);
+        return noise(width, megapixels * 1000000 / width, megapixels);
+    }
+
+    static BufferedImage noise(int width, int height, long seed) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+
+        SplittableRandom rand = new SplittableRandom(seed);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = rand.nextInt();
+        }
+        return img;
+    }
+
+    /**
+     * Throws away everything written to it, but counts it so the writes can't be optimized away
+     */
+    static class NullOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package Benchmarks;
+
+import Server.DecodeResult;
+import Server.ParallelDecoder;
+import Server.Steganography;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pulling the IP back out of an encoded carrier, with the plain linear scan, the pre-scan filter and the parallel
+ * decoder. The clean variants decode the carrier without anything hidden in it, which is the common case when going
+ * through a dump of leaked images.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DecodeBenchmark {
+
+    @Param({"dogs.jpg", "Husky.jpg", "mc.jpg", "synthetic-1", "synthetic-12", "synthetic-50"})
+    String carrier;
+
+    BufferedImage clean;
+    BufferedImage encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        clean = Carriers.load(carrier);
+        encoded = Carriers.load(carrier);
+        Steganography.hideIP(encoded, "192.168.100.200");
+    }
+
+    @Benchmark
+    public String retrieveIP() {
+        return Steganography.retrieveIP(encoded);
+    }
+
+    @Benchmark
+    public DecodeResult preScanned() {
+        return ParallelDecoder.decode(encoded, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public DecodeResult parallel() {
+        return ParallelDecoder.decode(encoded, 0);
+    }
+
+    @Benchmark
+    public String retrieveIPClean() {
+        return Steganography.retrieveIP(clean);
+    }
+
+    @Benchmark
+    public DecodeResult preScannedClean() {
+        return ParallelDecoder.decode(clean, Integer.MAX_VALUE);
+    }
+}
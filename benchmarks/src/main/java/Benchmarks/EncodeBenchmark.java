@@ -0,0 +1,70 @@
+package Benchmarks;
+
+import Server.EncodingRandom;
+import Server.PixelRaster;
+import Server.Steganography;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding an IP into a carrier. The payload is written over the same image again and again, hideIP() only touches
+ * a couple dozen pixels so the image doesn't need to be reset between calls. The tiny carriers have barely more
+ * pixels than the payload needs, which is where picking the spot used to be slowest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class EncodeBenchmark {
+
+    @Param({"dogs.jpg", "Husky.jpg", "mc.jpg", "synthetic-1", "synthetic-12", "synthetic-50", "tiny-6", "tiny-64"})
+    String carrier;
+
+    BufferedImage img;
+    PixelRaster raster;
+    EncodingRandom keyed;
+    int pixel;
+
+    @Setup
+    public void setup() throws IOException {
+        img = Carriers.load(carrier);
+        raster = new PixelRaster(img);
+        keyed = EncodingRandom.keyed(0x5EED);
+    }
+
+    @Benchmark
+    public boolean hideIP() {
+        return Steganography.hideIP(img, "192.168.100.200");
+    }
+
+    @Benchmark
+    public boolean hideIPRaster() {
+        return Steganography.hideIP(raster, "192.168.100.200");
+    }
+
+    @Benchmark
+    public boolean hideIPKeyed() {
+        return Steganography.hideIP(raster, "192.168.100.200", keyed);
+    }
+
+    @Benchmark
+    public void setPixel() {
+        pixel = (pixel + 7919) % (img.getWidth() * img.getHeight());
+        Steganography.setPixel(img, pixel % img.getWidth(), pixel / img.getWidth(), 7);
+    }
+}
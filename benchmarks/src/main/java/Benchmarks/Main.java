@@ -0,0 +1,24 @@
+package Benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler turned on so allocation rates show up next to the timings. Takes the
+ * same arguments as the regular JMH runner, for example a regex to only run some of the benchmarks:
+ * <p>
+ * java -jar target/benchmarks.jar Decode -p carrier=dogs.jpg
+ */
+public class Main {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,146 @@
+package Benchmarks;
+
+import Server.PngEncoder;
+import Server.PngTemplate;
+import Server.QoiEncoder;
+import Server.QoiTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Writing a whole carrier as a PNG with ImageIO, with the PngEncoder at a few settings and as a QOI, next to what
+ * /stega does per request for each output format: a PNG or a QOI of a copy of the carrier with one changed row, built
+ * from the carrier's template. The image is written to a stream that throws it away, the number of bytes it would
+ * have been is what each benchmark returns.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PngBenchmark {
+
+    @Param({"dogs.jpg", "Husky.jpg", "mc.jpg"})
+    String carrier;
+
+    BufferedImage img;
+    PngTemplate template;
+    QoiTemplate qoiTemplate;
+
+    // a checked out copy of the carrier with one pixel changed in the middle row, like a copy with an IP in it
+    BufferedImage copy;
+    int row;
+
+    PngEncoder defaults = new PngEncoder();
+    PngEncoder fast = new PngEncoder(1, Deflater.DEFAULT_STRATEGY);
+    PngEncoder filtered = new PngEncoder(Deflater.DEFAULT_COMPRESSION, Deflater.FILTERED);
+    PngEncoder huffman = new PngEncoder(Deflater.DEFAULT_COMPRESSION, Deflater.HUFFMAN_ONLY);
+
+    @Setup
+    public void setup() throws IOException {
+        img = Carriers.load(carrier);
+        template = new PngTemplate(img);
+        qoiTemplate = new QoiTemplate(img);
+
+        row = img.getHeight() / 2;
+        copy = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
+        copy.setData(img.getRaster());
+        copy.setRGB(img.getWidth() / 2, row, img.getRGB(img.getWidth() / 2, row) ^ 0x010101);
+    }
+
+    /**
+     * The generic ImageIO PNG writer
+     */
+    @Benchmark
+    public long imageIO() throws IOException {
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        ImageIO.write(img, "png", out);
+        return out.count;
+    }
+
+    /**
+     * The PngEncoder at the default level and strategy
+     */
+    @Benchmark
+    public long encoder() throws IOException {
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        defaults.write(img, out);
+        return out.count;
+    }
+
+    /**
+     * Level 1, the fastest level that still compresses
+     */
+    @Benchmark
+    public long encoderFast() throws IOException {
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        fast.write(img, out);
+        return out.count;
+    }
+
+    /**
+     * The filtered strategy, meant for data that has been through a PNG filter
+     */
+    @Benchmark
+    public long encoderFiltered() throws IOException {
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        filtered.write(img, out);
+        return out.count;
+    }
+
+    /**
+     * Huffman coding only, no string matching at all
+     */
+    @Benchmark
+    public long encoderHuffman() throws IOException {
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        huffman.write(img, out);
+        return out.count;
+    }
+
+    /**
+     * A PNG of the copy from the carrier's template, the PNG path of /stega without a robust IP
+     */
+    @Benchmark
+    public long template() throws IOException {
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        template.write(out, copy, row, row);
+        return out.count;
+    }
+
+    /**
+     * The whole image as a QOI, what /stega costs with a robust IP, which changes every row
+     */
+    @Benchmark
+    public long qoi() throws IOException {
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        QoiEncoder.write(img, out);
+        return out.count;
+    }
+
+    /**
+     * A QOI of the copy from the carrier's QOI template, the QOI path of /stega without a robust IP
+     */
+    @Benchmark
+    public long qoiTemplate() throws IOException {
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        qoiTemplate.write(out, copy, row, row);
+        return out.count;
+    }
+}
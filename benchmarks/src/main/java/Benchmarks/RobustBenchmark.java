@@ -0,0 +1,74 @@
+package Benchmarks;
+
+import Server.DecodeResult;
+import Server.ParallelDecoder;
+import Server.PixelRaster;
+import Server.RobustCodec;
+import Server.Steganography;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What robustness costs: hiding and reading an IP with the RobustCodec next to the exact scheme. The robust encoder
+ * alternates between two IPs, writing the same one again would leave most blocks where they are and skip the writes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RobustBenchmark {
+
+    @Param({"dogs.jpg", "Husky.jpg", "mc.jpg", "synthetic-12"})
+    String carrier;
+
+    RobustCodec codec = new RobustCodec(RobustCodec.DEFAULT_STEP);
+    PixelRaster raster;
+    BufferedImage exact;
+    BufferedImage robust;
+    int calls;
+
+    @Setup
+    public void setup() throws IOException {
+        raster = new PixelRaster(Carriers.load(carrier));
+
+        exact = Carriers.load(carrier);
+        Steganography.hideIP(exact, "192.168.100.200");
+        robust = Carriers.load(carrier);
+        codec.hideIP(new PixelRaster(robust), "192.168.100.200");
+    }
+
+    @Benchmark
+    public boolean hideIP() {
+        return Steganography.hideIP(raster, "192.168.100.200");
+    }
+
+    @Benchmark
+    public void hideIPRobust() {
+        codec.hideIP(raster, (calls++ & 1) == 0 ? "192.168.100.200" : "10.0.0.1");
+    }
+
+    @Benchmark
+    public DecodeResult decode() {
+        return ParallelDecoder.decode(exact);
+    }
+
+    @Benchmark
+    public DecodeResult decodeRobust() {
+        return codec.decode(robust);
+    }
+}
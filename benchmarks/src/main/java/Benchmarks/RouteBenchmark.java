@@ -0,0 +1,118 @@
+package Benchmarks;
+
+import Server.CarrierCache;
+import Server.EncodingRandom;
+import Server.PixelRaster;
+import Server.PngTemplate;
+import Server.Steganography;
+import Server.WatermarkPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per request work of the /stega route, from the carrier on disk to the bytes of the PNG. The PNG is written to
+ * a stream that throws it away, so the network isn't part of the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RouteBenchmark {
+
+    @Param({"dogs.jpg", "Husky.jpg", "mc.jpg"})
+    String carrier;
+
+    File file;
+    CarrierCache cache;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Carriers.file(carrier);
+        cache = new CarrierCache(256L * 1024 * 1024);
+        cache.get(file).getTemplate();
+    }
+
+    /**
+     * What the route does today: a cached carrier, a copy of it and only the dirty rows compressed again
+     */
+    @Benchmark
+    public long stega() throws IOException {
+        CarrierCache.Carrier cached = cache.get(file);
+        BufferedImage img = cached.checkout();
+        PixelRaster raster = new PixelRaster(img);
+        Steganography.hideIP(raster, "192.168.100.200");
+
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        PngTemplate template = cached.getTemplate();
+        template.write(out, img, raster.firstDirtyRow(), raster.lastDirtyRow());
+        return out.count;
+    }
+
+    /**
+     * A hit on the WatermarkPool, all that's left on the request thread is writing the IP into a pre-rendered variant
+     */
+    @Benchmark
+    public long stegaPooled(Pooled pooled) throws IOException {
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        pooled.variant.write(out, "192.168.100.200", EncodingRandom.threadLocal());
+        return out.count;
+    }
+
+    /**
+     * The cached carrier, but written out with the generic ImageIO PNG writer
+     */
+    @Benchmark
+    public long stegaImageIOWrite() throws IOException {
+        BufferedImage img = cache.checkout(file);
+        Steganography.hideIP(img, "192.168.100.200");
+
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        ImageIO.write(img, "png", out);
+        return out.count;
+    }
+
+    /**
+     * The route as it first was: read the JPEG from disk, encode, write the whole image with ImageIO
+     */
+    @Benchmark
+    public long stegaUncached() throws IOException {
+        BufferedImage img = ImageIO.read(file);
+        Steganography.hideIP(img, "192.168.100.200");
+
+        Carriers.NullOutputStream out = new Carriers.NullOutputStream();
+        ImageIO.write(img, "png", out);
+        return out.count;
+    }
+
+    /**
+     * A freshly rendered variant for every call, the rendering happens on the refill threads in the server so it
+     * isn't measured
+     */
+    @State(Scope.Thread)
+    public static class Pooled {
+        WatermarkPool.Variant variant;
+
+        @Setup(Level.Invocation)
+        public void render(RouteBenchmark route) throws IOException {
+            variant = WatermarkPool.render(route.cache.get(route.file), EncodingRandom.threadLocal());
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package Decoder;
+
+import Server.DecodeResult;
+import Server.KeyedPlacement;
+import Server.ParallelDecoder;
+import Server.RobustCodec;
+import Server.TiledDecoder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * The non interactive side of the decoder, for going through whole dumps of leaked images at once. Give it files,
+ * directories (searched recursively) or glob patterns and it prints one line per file with what was found and how
+ * long it took. The path column says if the image was thrown out by the pre-scan filter or had header candidates that
+ * needed checking.
+ * <p>
+ * java -jar decoder.jar [--format=csv|json] [--threads=N] [--max-images=N] [--key=secret] [--robust=step]
+ * [--cache=dir] [--cache-mb=N] paths...
+ * <p>
+ * With a key, the pixels picked by that key are checked first, which only takes a couple dozen pixel reads per image.
+ * Images that don't have a keyed IP are still searched for one written the old way.
+ * <p>
+ * With a step (the server's --robust), images that turn out not to have an exact IP are also read by the
+ * RobustCodec, which finds IPs in images that have been re-saved as JPEGs. That takes one more pass over the image.
+ * Images read by the TiledDecoder are only searched for exact IPs.
+ * <p>
+ * With a cache directory, what was found in each file is kept there (see DecodeCache) and files that were decoded on
+ * an earlier run are only hashed, not decoded. Their read time is the time it took to hash them, and their decode
+ * time is the one the cache remembers from when they were decoded.
+ * <p>
+ * Files are decoded on a fixed pool of worker threads. Files are only handed to the workers as fast as they can keep
+ * up and no more than --max-images images are ever decoded in memory at once, so it doesn't matter how many files
+ * there are. Images with more pixels than -Dstega.tileThreshold are never loaded whole, they are read from disk a tile
+ * at a time by the TiledDecoder and their read time is counted as decode time.
+ */
+public class BatchDecoder {
+
+    private String format = "csv";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxImages = -1;
+    private KeyedPlacement placement;
+    private RobustCodec robust;
+    private String key = "";
+    private int robustStep;
+    private String cacheDir;
+    private int cacheMegabytes = DecodeCache.DEFAULT_MEGABYTES;
+    private DecodeCache cache;
+    private final List<String> patterns = new ArrayList<>();
+
+    private final PrintStream out;
+
+    BatchDecoder(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Runs a batch from command line arguments
+     *
+     * @param args Options followed by files, directories or glob patterns
+     * @return The number of files that couldn't be read
+     */
+    public static int run(String[] args) throws IOException, InterruptedException {
+        BatchDecoder batch = new BatchDecoder(System.out);
+        batch.parse(args);
+        return batch.run();
+    }
+
+    void parse(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--format=")) {
+                format = arg.substring("--format=".length());
+                if (!format.equals("csv") && !format.equals("json")) {
+                    throw new IllegalArgumentException("The format is either csv or json, got " + format);
+                }
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--max-images=")) {
+                maxImages = Integer.parseInt(arg.substring("--max-images=".length()));
+            } else if (arg.startsWith("--key=")) {
+                key = arg.substring("--key=".length());
+                placement = new KeyedPlacement(key);
+            } else if (arg.startsWith("--robust=")) {
+                robustStep = Integer.parseInt(arg.substring("--robust=".length()));
+                robust = robustStep > 0 ? new RobustCodec(robustStep) : null;
+            } else if (arg.startsWith("--cache=")) {
+                cacheDir = arg.substring("--cache=".length());
+            } else if (arg.startsWith("--cache-mb=")) {
+                cacheMegabytes = Integer.parseInt(arg.substring("--cache-mb=".length()));
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            } else {
+                patterns.add(arg);
+            }
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        if (maxImages < 1) {
+            maxImages = threads;
+        }
+    }
+
+    /**
+     * Decodes every file matched by the patterns
+     *
+     * @return The number of files that couldn't be read
+     */
+    int run() throws IOException, InterruptedException {
+        if (cacheDir != null) {
+            cache = new DecodeCache(Paths.get(cacheDir), cacheMegabytes * 1024L * 1024L, key,
+                    robust == null ? 0 : robustStep);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        // Permits for images held in memory, and for files handed to the pool but not finished yet
+        Semaphore images = new Semaphore(maxImages);
+        Semaphore queued = new Semaphore(threads * 2);
+        AtomicInteger errors = new AtomicInteger();
+
+        if (format.equals("csv")) {
+            out.println("file,status,ip,path,candidates,read_ms,decode_ms,header,cached");
+        }
+
+        try {
+            for (String pattern : patterns) {
+                try (Stream<Path> files = find(pattern)) {
+                    Iterator<Path> it = files.iterator();
+                    while (it.hasNext()) {
+                        Path file = it.next();
+                        queued.acquire();
+                        pool.execute(() -> {
+                            try {
+                                Result result = decode(file.toFile(), images);
+                                if (result.status.equals("error")) {
+                                    errors.incrementAndGet();
+                                }
+                                print(result);
+                            } finally {
+                                queued.release();
+                            }
+                        });
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+
+        return errors.get();
+    }
+
+    /**
+     * Turns a file, directory or glob pattern into a lazy stream of the regular files it matches
+     */
+    static Stream<Path> find(String pattern) throws IOException {
+        int glob = indexOfGlob(pattern);
+        if (glob < 0) {
+            Path path = Paths.get(pattern);
+            if (Files.isDirectory(path)) {
+                return Files.walk(path).filter(Files::isRegularFile);
+            }
+            return Stream.of(path);
+        }
+
+        // walk from the last directory before the first wildcard
+        int slash = Math.max(pattern.lastIndexOf('/', glob), pattern.lastIndexOf(File.separatorChar, glob));
+        Path base = slash < 0 ? Paths.get(".") : Paths.get(pattern.substring(0, slash + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        boolean relative = slash < 0;
+
+        return Files.walk(base)
+                .filter(Files::isRegularFile)
+                .filter(p -> matcher.matches(relative ? base.relativize(p) : p));
+    }
+
+    private static int indexOfGlob(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads and decodes a single file, holding one of the image permits for as long as the image is in memory. Files
+     * in the cache are only hashed and never take a permit
+     */
+    private Result decode(File file, Semaphore images) {
+        Result result = new Result(file.getPath());
+
+        long start = System.nanoTime();
+        String cacheKey = null;
+        if (cache != null) {
+            try {
+                cacheKey = cache.keyOf(file);
+            } catch (IOException e) {
+                result.status = "error";
+                return result;
+            }
+            DecodeCache.Entry hit = cache.get(cacheKey);
+            if (hit != null) {
+                result.readMillis = (System.nanoTime() - start) / 1e6;
+                result.decodeMillis = hit.decodeMillis;
+                result.cached = true;
+                return found(result, hit.result);
+            }
+        }
+
+        try {
+            images.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.status = "error";
+            return result;
+        }
+
+        try {
+            start = System.nanoTime();
+            DecodeResult decoded;
+            if (TiledDecoder.shouldTile(file)) {
+                decoded = TiledDecoder.decode(file, placement);
+                result.decodeMillis = (System.nanoTime() - start) / 1e6;
+            } else {
+                BufferedImage img = ImageIO.read(file);
+                long read = System.nanoTime();
+                result.readMillis = (read - start) / 1e6;
+
+                if (img == null) {
+                    result.status = "error";
+                    return result;
+                }
+
+                decoded = placement != null ? placement.decode(img) : null;
+                if (decoded == null || decoded.ip.isEmpty()) {
+                    decoded = ParallelDecoder.decode(img);
+                }
+                if (decoded.ip.isEmpty() && robust != null) {
+                    DecodeResult voted = robust.decode(img);
+                    if (!voted.ip.isEmpty()) {
+                        decoded = voted;
+                    }
+                }
+                result.decodeMillis = (System.nanoTime() - read) / 1e6;
+            }
+
+            if (cache != null) {
+                cache.put(cacheKey, decoded, result.decodeMillis);
+            }
+            found(result, decoded);
+        } catch (IOException | RuntimeException e) {
+            result.status = "error";
+        } finally {
+            images.release();
+        }
+        return result;
+    }
+
+    private static Result found(Result result, DecodeResult decoded) {
+        result.ip = decoded.ip;
+        result.path = decoded.path;
+        result.candidates = decoded.candidates;
+        result.header = decoded.header;
+        result.status = result.ip.isEmpty() ? "none" : "found";
+        return result;
+    }
+
+    private void print(Result result) {
+        String line;
+        if (format.equals("json")) {
+            line = "{\"file\":" + jsonString(result.file) + ",\"status\":\"" + result.status + "\",\"ip\":"
+                    + jsonString(result.ip) + ",\"path\":\"" + result.path + "\",\"candidates\":" + result.candidates
+                    + String.format(Locale.ROOT, ",\"readMs\":%.3f,\"decodeMs\":%.3f",
+                    result.readMillis, result.decodeMillis)
+                    + ",\"header\":" + result.header + ",\"cached\":" + result.cached + "}";
+        } else {
+            line = csvString(result.file) + "," + result.status + "," + result.ip + "," + result.path + ","
+                    + result.candidates
+                    + String.format(Locale.ROOT, ",%.3f,%.3f", result.readMillis, result.decodeMillis)
+                    + "," + result.header + "," + result.cached;
+        }
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+
+    static String jsonString(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    static String csvString(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * What happened to one file
+     */
+    static class Result {
+        final String file;
+        String status = "error";
+        String ip = "";
+        String path = "";
+        int candidates;
+        int header = -1;
+        boolean cached;
+        double readMillis;
+        double decodeMillis;
+
+        Result(String file) {
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package Decoder;
+
+import Server.DecodeResult;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers what was found in every file the decoder has looked at, in a directory on disk, so going through the
+ * same dump again doesn't decode any image a second time. Files are looked up by a SHA-256 hash of their bytes, which
+ * is read straight off the disk without decoding anything. A file that changed gets a new hash and is decoded again,
+ * and copies of a file under other names are found under the hash they share. Images that were re-saved or edited
+ * are different bytes, so they are decoded like any new file.
+ * <p>
+ * The key and robust step the decoder runs with go into the hash too, since they change what is found. Each entry is
+ * one small file holding the IP, the path the decoder took, where the header was and how long the decode took. When
+ * the entries add up to more than the size limit, the ones that haven't been used for longest are deleted.
+ * <p>
+ * The cache is only ever a shortcut, an entry that can't be read or written is treated as missing.
+ */
+public class DecodeCache {
+
+    // how many megabytes of entries to keep if no limit is given
+    public static final int DEFAULT_MEGABYTES = 64;
+
+    // goes into every hash, bump it when the decoder starts finding different things in the same files
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".entry";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final byte[] settings;
+
+    // the size of every entry by hash, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long size;
+
+    /**
+     * Opens a cache directory, creating it if needed. Entries already in it are picked up, oldest first
+     *
+     * @param directory  Where the entries live
+     * @param maxBytes   How big the entries may get all together
+     * @param key        The key the decoder looks for keyed IPs with, empty if it doesn't
+     * @param robustStep The step the decoder reads robust IPs with, 0 if it doesn't
+     * @throws IOException If the directory can't be created or listed
+     */
+    public DecodeCache(Path directory, long maxBytes, String key, int robustStep) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.settings = ("v" + VERSION + ";key=" + key + ";robust=" + robustStep).getBytes(StandardCharsets.UTF_8);
+
+        Files.createDirectories(directory);
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                found.add(file);
+            }
+        }
+        found.sort(Comparator.comparing(DecodeCache::lastUsed));
+        for (Path file : found) {
+            String name = file.getFileName().toString();
+            long length = file.toFile().length();
+            entries.put(name.substring(0, name.length() - SUFFIX.length()), length);
+            size += length;
+        }
+        evict();
+    }
+
+    /**
+     * Hashes a file together with the settings of the cache, reading it a block at a time
+     *
+     * @param file The file to hash
+     * @return The hash in hex, what the file is cached under
+     * @throws IOException If the file can't be read
+     */
+    public String keyOf(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        digest.update(settings);
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @param key The hash of a file, see keyOf()
+     * @return What was found in the file last time, or null if it isn't cached
+     */
+    public Entry get(String key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+
+        Path file = directory.resolve(key + SUFFIX);
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            String[] fields = lines.isEmpty() ? new String[0] : lines.get(0).split("\t", -1);
+            if (fields.length != 5) {
+                return null;
+            }
+            DecodeResult result = new DecodeResult(fields[0], fields[1], Integer.parseInt(fields[2]),
+                    Integer.parseInt(fields[3]));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Entry(result, Double.parseDouble(fields[4]));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores what was found in a file, pushing out the least recently used entries if the cache gets too big
+     *
+     * @param key          The hash of the file, see keyOf()
+     * @param result       What the decoder found
+     * @param decodeMillis How long the decode took
+     */
+    public void put(String key, DecodeResult result, double decodeMillis) {
+        Path file = directory.resolve(key + SUFFIX);
+        Path temp = null;
+        long length;
+        try {
+            // written next to the entry and moved over it, so nobody ever reads half an entry
+            temp = Files.createTempFile(directory, key, ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write(result.ip + "\t" + result.path + "\t" + result.candidates + "\t" + result.header + "\t"
+                        + decodeMillis);
+                out.newLine();
+            }
+            length = Files.size(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            Long previous = entries.put(key, length);
+            size += length - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    /**
+     * @return How many bytes the entries take up all together
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey() + SUFFIX));
+            } catch (IOException e) {
+                // it is forgotten either way, at worst the file sits there until the next run
+            }
+            size -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private static long lastUsed(Path file) {
+        return file.toFile().lastModified();
+    }
+
+    /**
+     * One cached decode
+     */
+    public static class Entry {
+        public final DecodeResult result;
+        public final double decodeMillis;
+
+        Entry(DecodeResult result, double decodeMillis) {
+            this.result = result;
+            this.decodeMillis = decodeMillis;
+        }
+    }
+}
@@ -1,21 +1,50 @@
 package Decoder;
 
-import Server.Steganography;
+import Server.DecodeResult;
+import Server.KeyedPlacement;
+import Server.ParallelDecoder;
+import Server.RobustCodec;
+import Server.TiledDecoder;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Locale;
 import java.util.Scanner;
 
 /**
  * This is a side app to decode any images that may have leaked. Simply type in the name of the image file and it will
- * be decoded.
+ * be decoded. To go through a lot of files at once, pass them on the command line instead and they are decoded in a
+ * batch, see BatchDecoder.
+ * <p>
+ * If the server hides IPs with a key, pass the same key with -Dstega.key=secret (or --key=secret in batch mode). If it
+ * hides robust IPs, pass its step with -Dstega.robust=8 (or --robust=8) to find them in images re-saved as JPEGs.
+ * <p>
+ * Images too big to load comfortably are read from disk a tile at a time instead, see TiledDecoder and
+ * -Dstega.tileThreshold.
+ * <p>
+ * QOI files, which the server sends to clients that ask for them, are read the same as PNGs, see QoiImageReaderSpi.
+ * <p>
+ * With -Dstega.cache=dir (--cache=dir in batch mode) what was found in each file is remembered in that directory, and
+ * files that were decoded before are only hashed, see DecodeCache. -Dstega.cacheMb caps its size.
  */
 public class Decoder {
 
-    public static void main(String[] args) {
-        // write your code here
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            System.exit(BatchDecoder.run(args) == 0 ? 0 : 1);
+        }
+
+        String key = System.getProperty("stega.key");
+        KeyedPlacement placement = key == null || key.isEmpty() ? null : new KeyedPlacement(key);
+        int step = Integer.getInteger("stega.robust", 0);
+        RobustCodec robust = step > 0 ? new RobustCodec(step) : null;
+        String cacheDir = System.getProperty("stega.cache");
+        DecodeCache cache = cacheDir == null || cacheDir.isEmpty() ? null : new DecodeCache(Paths.get(cacheDir),
+                Integer.getInteger("stega.cacheMb", DecodeCache.DEFAULT_MEGABYTES) * 1024L * 1024L,
+                placement == null ? "" : key, step > 0 ? step : 0);
 
         Scanner sc = new Scanner(System.in);
         while (true) {
@@ -27,6 +56,39 @@ public class Decoder {
             }
 
             File imageFile = new File(filepath);
+
+            // files decoded before are only hashed
+            String cacheKey = null;
+            if (cache != null) {
+                try {
+                    cacheKey = cache.keyOf(imageFile);
+                } catch (IOException e) {
+                    System.out.println("Error: file not found.\n");
+                    continue;
+                }
+                DecodeCache.Entry hit = cache.get(cacheKey);
+                if (hit != null) {
+                    print(hit.result.ip);
+                    System.out.printf(Locale.ROOT, "(from the cache, decoding it took %.1f ms)%n", hit.decodeMillis);
+                    continue;
+                }
+            }
+            long start = System.nanoTime();
+
+            // huge images never get loaded whole
+            if (TiledDecoder.shouldTile(imageFile)) {
+                DecodeResult decoded;
+                try {
+                    decoded = TiledDecoder.decode(imageFile, placement);
+                } catch (IOException e) {
+                    System.out.println("Error: couldn't read the image.\n");
+                    continue;
+                }
+                remember(cache, cacheKey, decoded, start);
+                print(decoded.ip);
+                continue;
+            }
+
             BufferedImage img = null;
             try {
                 img = ImageIO.read(imageFile);
@@ -36,14 +98,37 @@ public class Decoder {
                 //e.printStackTrace();
             }
 
-            String hiddenIP = Steganography.retrieveIP(img);
+            // the keyed pixels are checked first, then big images are searched in parallel, see -Dstega.parallelThreshold
+            DecodeResult decoded = placement != null ? placement.decode(img) : null;
+            if (decoded == null || decoded.ip.length() == 0) {
+                decoded = ParallelDecoder.decode(img);
+            }
 
-            if (hiddenIP.length() == 0) {
-                System.out.println("\nNo hidden IP was found in this image");
-            }else {
-                System.out.println("\nThe hidden IP is: " + hiddenIP);
+            // an exact IP doesn't survive JPEG compression, a robust one does
+            if (decoded.ip.length() == 0 && robust != null) {
+                DecodeResult voted = robust.decode(img);
+                if (voted.ip.length() > 0) {
+                    decoded = voted;
+                }
             }
 
+            remember(cache, cacheKey, decoded, start);
+            print(decoded.ip);
+
+        }
+    }
+
+    private static void remember(DecodeCache cache, String cacheKey, DecodeResult decoded, long start) {
+        if (cache != null) {
+            cache.put(cacheKey, decoded, (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    private static void print(String hiddenIP) {
+        if (hiddenIP.length() == 0) {
+            System.out.println("\nNo hidden IP was found in this image");
+        }else {
+            System.out.println("\nThe hidden IP is: " + hiddenIP);
         }
     }
 }
@@ -0,0 +1,146 @@
+package Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A pool of direct byte buffers for building responses in. Direct buffers can be handed to the socket without being
+ * copied again, but they are expensive to allocate and slow to be garbage collected, so they are kept around and
+ * reused. Buffers are grouped by capacity in powers of two and only a handful of each size are kept.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 26;
+
+    private final int maxPerSize;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicIntegerArray freeCounts;
+
+    /**
+     * @param maxPerSize The most idle buffers kept for each capacity
+     */
+    public BufferPool(int maxPerSize) {
+        this.maxPerSize = maxPerSize;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<ByteBuffer>[] queues = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        free = queues;
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+        freeCounts = new AtomicIntegerArray(free.length);
+    }
+
+    /**
+     * Hands out a cleared buffer with at least the requested capacity
+     *
+     * @param capacity The number of bytes needed
+     * @return A direct buffer ready to be written into
+     */
+    public ByteBuffer acquire(int capacity) {
+        int bucket = bucketOf(capacity);
+        if (bucket >= free.length) {
+            // too big to be worth keeping around
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        ByteBuffer buf = free[bucket].poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(1 << (bucket + MIN_SHIFT));
+        }
+        freeCounts.decrementAndGet(bucket);
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buf A buffer from acquire()
+     */
+    public void release(ByteBuffer buf) {
+        int bucket = bucketOf(buf.capacity());
+        if (bucket >= free.length || buf.capacity() != 1 << (bucket + MIN_SHIFT)) {
+            return;
+        }
+        if (freeCounts.incrementAndGet(bucket) > maxPerSize) {
+            freeCounts.decrementAndGet(bucket);
+            return;
+        }
+        free[bucket].offer(buf);
+    }
+
+    private static int bucketOf(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1 << MIN_SHIFT) - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * An OutputStream that writes into pooled buffers, moving to a bigger one whenever it runs out of room. Call
+     * toBuffer() once everything is written and release() when the contents have been sent.
+     */
+    public static class BufferOutputStream extends OutputStream {
+
+        private final BufferPool pool;
+        private ByteBuffer buf;
+
+        public BufferOutputStream(BufferPool pool, int initialCapacity) {
+            this.pool = pool;
+            buf = pool.acquire(initialCapacity);
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            buf.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            buf.put(b, off, len);
+        }
+
+        /**
+         * @return The written bytes, flipped and ready to be read
+         */
+        public ByteBuffer toBuffer() {
+            ByteBuffer result = buf.duplicate();
+            result.flip();
+            return result;
+        }
+
+        public int size() {
+            return buf.position();
+        }
+
+        /**
+         * Gives the underlying buffer back to the pool
+         */
+        public void release() {
+            if (buf != null) {
+                pool.release(buf);
+                buf = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the contents stay around until release()
+        }
+
+        private void ensure(int needed) {
+            if (buf.remaining() >= needed) {
+                return;
+            }
+            ByteBuffer bigger = pool.acquire(Math.max(buf.capacity() * 2, buf.position() + needed));
+            buf.flip();
+            bigger.put(buf);
+            pool.release(buf);
+            buf = bigger;
+        }
+    }
+}
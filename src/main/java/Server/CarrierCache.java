@@ -0,0 +1,227 @@
+package Server;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps decoded copies of the carrier images so the server doesn't have to read and decode a JPEG from disk on every
+ * request. Each carrier is decoded once into a pristine master image in a packed int layout. Requests that want to
+ * encode something get their own copy of the master, which is just one array copy of the pixels.
+ * <p>
+ * The cache is bounded by the number of bytes of pixel data it holds and throws out the least recently used carrier
+ * when it gets too big. A carrier is reloaded if its file on disk has been changed since it was decoded.
+ */
+public class CarrierCache {
+
+    private final long maxBytes;
+    private long usedBytes;
+
+    // access ordered, so the eldest entry is always the least recently used one
+    private final LinkedHashMap<String, Carrier> carriers = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxBytes The most pixel data the cache should hold. The most recently used carrier is always kept,
+     *                 even if it's bigger than this on its own
+     */
+    public CarrierCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached carrier for an image file, decoding it first if it isn't cached or the file has changed
+     *
+     * @param file The image file of the carrier
+     * @return The cached carrier
+     * @throws IOException If the file can't be read or isn't an image
+     */
+    public Carrier get(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        synchronized (this) {
+            Carrier carrier = carriers.get(key);
+            if (carrier != null && carrier.lastModified == lastModified && carrier.length == length) {
+                Metrics.CACHE_HITS.increment();
+                return carrier;
+            }
+        }
+        Metrics.CACHE_MISSES.increment();
+
+        // Decode outside of the lock so one slow carrier doesn't hold up requests for the others
+        long start = System.nanoTime();
+        long allocated = Metrics.allocatedBytes();
+        BufferedImage decoded = ImageIO.read(file);
+        if (decoded == null) {
+            throw new IOException("Not a readable image: " + file);
+        }
+        Carrier carrier = new Carrier(this, key, PixelRaster.toPackedInt(decoded), lastModified, length);
+        Metrics.LOAD.record(start, allocated);
+
+        synchronized (this) {
+            Carrier old = carriers.put(key, carrier);
+            if (old != null) {
+                usedBytes -= old.bytes();
+            }
+            usedBytes += carrier.bytes();
+            evict();
+        }
+        return carrier;
+    }
+
+    /**
+     * Returns the pristine decoded image for a carrier. This is shared between every request so it must NOT be
+     * modified, use checkout() for anything that wants to write to the pixels.
+     *
+     * @param file The image file of the carrier
+     * @return The decoded master image
+     * @throws IOException If the file can't be read or isn't an image
+     */
+    public BufferedImage getMaster(File file) throws IOException {
+        return get(file).getMaster();
+    }
+
+    /**
+     * Returns a private copy of a carrier that is safe to modify
+     *
+     * @param file The image file of the carrier
+     * @return A copy of the decoded master image
+     * @throws IOException If the file can't be read or isn't an image
+     */
+    public BufferedImage checkout(File file) throws IOException {
+        return get(file).checkout();
+    }
+
+    /**
+     * Counts memory a carrier picked up after it was cached, like its templates, against the budget
+     */
+    private synchronized void grow(Carrier carrier, long bytes) {
+        if (carriers.get(carrier.key) == carrier) {
+            usedBytes += bytes;
+            evict();
+        }
+    }
+
+    /**
+     * Throws out carriers, least recently used first, until the cache fits in its budget again
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Carrier>> it = carriers.entrySet().iterator();
+        while (usedBytes > maxBytes && carriers.size() > 1 && it.hasNext()) {
+            usedBytes -= it.next().getValue().bytes();
+            it.remove();
+        }
+    }
+
+    /**
+     * Copies a packed int image, all it takes is one array copy of the pixel data
+     *
+     * @param master The image to copy, as returned by getMaster()
+     * @return An identical image that doesn't share any pixel data with the master
+     */
+    static BufferedImage copy(BufferedImage master) {
+        BufferedImage copy = new BufferedImage(master.getWidth(), master.getHeight(), master.getType());
+        int[] from = ((DataBufferInt) master.getRaster().getDataBuffer()).getData();
+        int[] to = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+        System.arraycopy(from, 0, to, 0, from.length);
+        return copy;
+    }
+
+    /**
+     * A decoded carrier, the state of the file it was decoded from, and PNG and QOI templates and a CarrierIndex that
+     * are built the first time they are needed
+     */
+    public static class Carrier {
+        private final CarrierCache cache;
+        private final String key;
+        private final BufferedImage master;
+        private final long lastModified;
+        private final long length;
+        private volatile PngTemplate template;
+        private volatile QoiTemplate qoiTemplate;
+        private volatile CarrierIndex index;
+
+        Carrier(CarrierCache cache, String key, BufferedImage master, long lastModified, long length) {
+            this.cache = cache;
+            this.key = key;
+            this.master = master;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * @return The decoded master image, which must NOT be modified
+         */
+        public BufferedImage getMaster() {
+            return master;
+        }
+
+        /**
+         * @return A private copy of the master image that is safe to modify
+         */
+        public BufferedImage checkout() {
+            return copy(master);
+        }
+
+        /**
+         * @return The pre-compressed PNG of the master image, for writing out copies of it quickly
+         */
+        public PngTemplate getTemplate() {
+            PngTemplate result = template;
+            if (result == null) {
+                synchronized (this) {
+                    result = template;
+                    if (result == null) {
+                        result = new PngTemplate(master);
+                        template = result;
+                        cache.grow(this, result.compressedBytes());
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return The pre-encoded QOI of the master image, for writing out copies of it quickly
+         */
+        public QoiTemplate getQoiTemplate() {
+            QoiTemplate result = qoiTemplate;
+            if (result == null) {
+                synchronized (this) {
+                    result = qoiTemplate;
+                    if (result == null) {
+                        result = new QoiTemplate(master);
+                        qoiTemplate = result;
+                        cache.grow(this, result.encodedBytes());
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return Where the payload can go in this carrier, worked out the first time it is needed
+         */
+        public CarrierIndex getIndex() {
+            CarrierIndex result = index;
+            if (result == null) {
+                result = CarrierIndex.of(master);
+                index = result;
+            }
+            return result;
+        }
+
+        long bytes() {
+            PngTemplate png = template;
+            QoiTemplate qoi = qoiTemplate;
+            return 4L * master.getWidth() * master.getHeight() + (png == null ? 0 : png.compressedBytes())
+                    + (qoi == null ? 0 : qoi.encodedBytes());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package Server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every carrier image the server can hide IPs in, found by scanning a directory once at startup. The scan only lists
+ * the files, so it is quick however many carriers there are. Each carrier is decoded and indexed (see CarrierIndex)
+ * the first time it is asked for, or earlier if warm() is called, which works through them on a small pool of
+ * threads so several carriers are indexed at once. The decoded images and their indexes live in the CarrierCache.
+ * <p>
+ * Carriers are looked up by file name, and only names the scan found are ever handed out, so a request can't point
+ * the server at any other file.
+ */
+public class CarrierCatalog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CarrierCatalog.class);
+
+    // the file types ImageIO can read out of the box, and QOI through QoiImageReaderSpi
+    private static final Set<String> EXTENSIONS = new HashSet<>(
+            Arrays.asList("jpg", "jpeg", "png", "bmp", "gif", "qoi"));
+
+    private final CarrierCache cache;
+    private final ExecutorService indexers;
+
+    // carriers by file name, in the order they were found
+    private final Map<String, Entry> entries;
+
+    /**
+     * Lists the carriers in a directory. Nothing is decoded yet
+     *
+     * @param directory Where the carriers are, subdirectories aren't searched
+     * @param cache     Where the decoded carriers are kept
+     * @param threads   How many carriers can be decoded and indexed at once
+     */
+    public CarrierCatalog(File directory, CarrierCache cache, int threads) {
+        this.cache = cache;
+
+        AtomicInteger count = new AtomicInteger();
+        indexers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "carrier-index-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        Map<String, Entry> found = new LinkedHashMap<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            LOG.warn("Can't list the carrier directory {}", directory);
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            if (file.isFile() && dot > 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+                found.put(name, new Entry(file));
+            }
+        }
+        entries = Collections.unmodifiableMap(found);
+        LOG.info("Found {} carriers in {}", entries.size(), directory);
+    }
+
+    /**
+     * Starts decoding and indexing every carrier in the background, several at once, without waiting for any of them.
+     * If they don't all fit in the CarrierCache, the ones pushed out are simply decoded again when they are asked for
+     */
+    public void warm() {
+        for (Entry entry : entries.values()) {
+            indexers.execute(() -> {
+                try {
+                    CarrierIndex index = entry.getIndex();
+                    if (!index.canHold()) {
+                        LOG.warn("{} has no room for an IP", entry.file.getName());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Can't index the carrier " + entry.file.getName(), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param name The file name of a carrier, like dogs.jpg
+     * @return The carrier, or null if the scan didn't find one by that name
+     */
+    public Entry get(String name) {
+        return name == null ? null : entries.get(name);
+    }
+
+    /**
+     * @return The file names of every carrier, in the order they were found
+     */
+    public Set<String> names() {
+        return entries.keySet();
+    }
+
+    /**
+     * Stops the background indexing, carriers that haven't been indexed yet are indexed when they are first asked for
+     */
+    public void shutdown() {
+        indexers.shutdownNow();
+    }
+
+    /**
+     * One carrier image of the catalog
+     */
+    public class Entry {
+        private final File file;
+
+        Entry(File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The decoded carrier, from the cache if it's there
+         * @throws IOException If the file can't be read as an image
+         */
+        public CarrierCache.Carrier carrier() throws IOException {
+            return cache.get(file);
+        }
+
+        /**
+         * @return Where the payload can go in the carrier, decoding and indexing it first if needed
+         * @throws IOException If the file can't be read as an image
+         */
+        public CarrierIndex getIndex() throws IOException {
+            return carrier().getIndex();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * What a carrier can hold and where. The payload is written in one run of pixels, so it has to start far enough from
+ * the end of the image to fit. It also has to start no later than the first header the carrier happens to have all
+ * on its own, since the decoder stops at the first header it finds. Some photos have one (mc.jpg does, about 157
+ * thousand pixels in), and an IP written after it could never be read back.
+ * <p>
+ * That leaves one range of good starting pixels, [0, capacity()), so picking a start is a single random number
+ * instead of drawing spots until one fits.
+ */
+public final class CarrierIndex {
+
+    // hideIP() has always left this many pixels between the start of the payload and the end of the image
+    static final int PAYLOAD_ROOM = 30;
+
+    private final int width;
+    private final int height;
+    private final int naturalHeader;
+    private final int capacity;
+
+    private CarrierIndex(int width, int height, int naturalHeader) {
+        this.width = width;
+        this.height = height;
+        this.naturalHeader = naturalHeader;
+
+        int room = startRange(width * height);
+        this.capacity = naturalHeader < 0 ? room : (int) Math.min(room, naturalHeader + 1L);
+    }
+
+    /**
+     * The starts that leave enough room after them in an image of a given size, with no regard for natural headers
+     *
+     * @param pixelCount The number of pixels in the image
+     * @return How many pixels the payload can start at, they are all before this flat index
+     */
+    static int startRange(int pixelCount) {
+        return Math.max(0, pixelCount - PAYLOAD_ROOM);
+    }
+
+    /**
+     * Indexes a carrier, which takes one pass of the PreScanFilter over the image
+     *
+     * @param master The carrier image
+     * @return The index of the carrier
+     */
+    public static CarrierIndex of(BufferedImage master) {
+        return of(PixelRaster.forReading(master));
+    }
+
+    /**
+     * Indexes the pixels as they are right now, for a copy that was changed after the carrier was indexed
+     *
+     * @param raster The pixels to index
+     * @return The index of the pixels
+     */
+    public static CarrierIndex of(PixelRaster raster) {
+        int end = PreScanFilter.findSecret(raster, 0, raster.getPixelCount(), null);
+        return new CarrierIndex(raster.getWidth(), raster.getHeight(),
+                end < 0 ? -1 : end - Steganography.HEADER_LENGTH);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The flat index of the first pixel of the carrier's own header, or -1 if it doesn't have one
+     */
+    public int getNaturalHeader() {
+        return naturalHeader;
+    }
+
+    /**
+     * @return How many pixels the payload can start at, they are all before this flat index
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return True if there is anywhere at all to put the payload
+     */
+    public boolean canHold() {
+        return capacity > 0;
+    }
+
+    /**
+     * Picks a random spot for the payload
+     *
+     * @param rand The source of randomness
+     * @return The flat index to start the payload at
+     * @throws IllegalStateException If the carrier can't hold a payload
+     */
+    public int pickStart(EncodingRandom rand) {
+        if (capacity <= 0) {
+            throw new IllegalStateException("The carrier has no room for an IP");
+        }
+        return rand.nextInt(capacity);
+    }
+}
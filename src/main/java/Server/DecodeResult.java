@@ -0,0 +1,46 @@
+package Server;
+
+/**
+ * What the decoder found in an image and how it got there. Used by the batch decoder to report on a whole corpus of
+ * images.
+ */
+public class DecodeResult {
+
+    // The image had no header candidates at all and was thrown out by the PreScanFilter
+    public static final String REJECTED = "rejected";
+
+    // The image had header candidates and they were checked with the full matcher
+    public static final String VERIFIED = "verified";
+
+    // Only the pixels picked by a KeyedPlacement were read
+    public static final String KEYED = "keyed";
+
+    // The image was too big to load and was searched a tile at a time by the TiledDecoder
+    public static final String STREAMED = "streamed";
+
+    // The IP was voted out of the brightness of the image's blocks by the RobustCodec
+    public static final String ROBUST = "robust";
+
+    // The hidden IP, or an empty string if there wasn't one
+    public final String ip;
+
+    // One of REJECTED, VERIFIED, KEYED, STREAMED or ROBUST
+    public final String path;
+
+    // How many header candidates had to be checked
+    public final int candidates;
+
+    // The flat index of the first pixel of the header the IP was found after, or -1 if there wasn't one
+    public final int header;
+
+    public DecodeResult(String ip, String path, int candidates) {
+        this(ip, path, candidates, -1);
+    }
+
+    public DecodeResult(String ip, String path, int candidates, int header) {
+        this.ip = ip;
+        this.path = path;
+        this.candidates = candidates;
+        this.header = header;
+    }
+}
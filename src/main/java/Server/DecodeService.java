@@ -0,0 +1,295 @@
+package Server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The decoder as a service, the work behind POST /decode. Uploaded images are held in memory and go on one queue
+ * shared by every request, and a fixed pool of decode threads works through it. Each thread takes everything that is
+ * waiting, up to a batch at a time, and decodes the batch smallest image first, so a small upload doesn't sit behind
+ * a big one from another request and a busy queue is drained with one wake up per batch instead of one per image.
+ * <p>
+ * The queue has a fixed depth, counted in images waiting or being decoded. A request reserves room for an image before
+ * its upload is read and for the rest of its images once they are in, so no more uploads are held in memory than the
+ * queue has room for, and a request without room is turned away right away (the route answers 503) instead of making
+ * everyone wait longer. Images are
+ * checked for their size before they are decoded and ones with more pixels than the TiledDecoder's threshold aren't
+ * decoded at all.
+ * <p>
+ * An image is searched the same way the decoder does it: the keyed pixels if the server has a key, then the whole
+ * image for an exact IP, then the robust IP if the server writes those.
+ */
+public class DecodeService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DecodeService.class);
+
+    private final KeyedPlacement placement;
+    private final RobustCodec robust;
+    private final int batchSize;
+    private final long maxPixels;
+
+    // images waiting for a decode thread, and a permit for each image that may be waiting or being decoded
+    private final LinkedBlockingQueue<Upload> queue = new LinkedBlockingQueue<>();
+    private final Semaphore slots;
+    private final int depth;
+
+    private final Thread[] workers;
+
+    /**
+     * Starts the decode threads
+     *
+     * @param threads   How many images can be decoded at once
+     * @param depth     How many images may be waiting or being decoded before requests are turned away
+     * @param batchSize The most images a decode thread takes off the queue at once
+     * @param placement The key to check for keyed IPs, or null
+     * @param robust    The codec to check for robust IPs, or null
+     */
+    public DecodeService(int threads, int depth, int batchSize, KeyedPlacement placement, RobustCodec robust) {
+        this.placement = placement;
+        this.robust = robust;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxPixels = TiledDecoder.DEFAULT_THRESHOLD;
+        this.depth = Math.max(1, depth);
+        this.slots = new Semaphore(this.depth);
+
+        workers = new Thread[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::work, "decode-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Reserves room for some of a request's images, before or while its upload is read. The reservation is handed
+     * over to decode(), or given back with release() if the request fails before that
+     *
+     * @param images How many images to reserve room for, at most getDepth()
+     * @return False if the queue doesn't have room for them, nothing is reserved then
+     */
+    public boolean reserve(int images) {
+        if (!slots.tryAcquire(images)) {
+            Metrics.DECODE_REJECTED.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back room taken with reserve() that won't be handed to decode()
+     *
+     * @param images How many images were reserved
+     */
+    public void release(int images) {
+        if (images > 0) {
+            slots.release(images);
+        }
+    }
+
+    /**
+     * Decodes a request's images and waits for all of them. The room the images don't take up is given back right
+     * away, the rest as each image is decoded.
+     *
+     * @param uploads  The images, their results are filled in
+     * @param reserved How many images were reserved for the request with reserve(), at least as many as there are
+     * @throws InterruptedIOException If the wait was interrupted
+     */
+    public void decode(List<Upload> uploads, int reserved) throws InterruptedIOException {
+        if (uploads.size() > reserved) {
+            throw new IllegalArgumentException(uploads.size() + " images with room for " + reserved);
+        }
+        release(reserved - uploads.size());
+        queue.addAll(uploads);
+
+        try {
+            for (Upload upload : uploads) {
+                upload.done.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the decoder");
+        } catch (ExecutionException e) {
+            // the decode threads always complete normally
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return How many images may be waiting or being decoded at once, the most one request can reserve
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return How many images are waiting for a decode thread right now
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Stops the decode threads, images still waiting are never decoded
+     */
+    public void shutdown() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void work() {
+        List<Upload> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            batch.sort(Comparator.comparingInt(upload -> upload.data.length));
+            Metrics.DECODE_BATCHES.increment();
+
+            for (Upload upload : batch) {
+                try {
+                    decode(upload);
+                } finally {
+                    slots.release();
+                    upload.done.complete(null);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Reads and searches one image. The size is read from the header first so oversized images are never decoded
+     */
+    private void decode(Upload upload) {
+        long start = System.nanoTime();
+        long allocated = Metrics.allocatedBytes();
+        ImageReader reader = null;
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(upload.data))) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                upload.status = "error";
+                return;
+            }
+            reader = readers.next();
+            reader.setInput(in, true, true);
+            if ((long) reader.getWidth(0) * reader.getHeight(0) > maxPixels) {
+                upload.status = "too_big";
+                return;
+            }
+            BufferedImage img = reader.read(0);
+
+            // each image is searched on its own thread, the pool already decodes several at once
+            DecodeResult decoded = placement != null ? placement.decode(img) : null;
+            if (decoded == null || decoded.ip.isEmpty()) {
+                decoded = ParallelDecoder.decode(img, Integer.MAX_VALUE);
+            }
+            if (decoded.ip.isEmpty() && robust != null) {
+                DecodeResult voted = robust.decode(img);
+                if (!voted.ip.isEmpty()) {
+                    decoded = voted;
+                }
+            }
+            upload.result = decoded;
+            upload.status = decoded.ip.isEmpty() ? "none" : "found";
+        } catch (IOException | RuntimeException e) {
+            upload.status = "error";
+        } catch (Throwable e) {
+            // an OutOfMemoryError on a huge upload must not take the thread down, the rest of its batch and every
+            // later request would wait for it forever
+            LOG.warn("Decoding {} failed", upload.name, e);
+            upload.status = "error";
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+            upload.decodeMillis = (System.nanoTime() - start) / 1e6;
+            Metrics.DECODE.record(start, allocated);
+            Metrics.DECODE_IMAGES.increment();
+        }
+    }
+
+    /**
+     * Builds the JSON body for a request's results
+     *
+     * @param uploads The images of the request, after decode()
+     * @return An object with an images array, one entry per image in the order they were uploaded
+     */
+    public static String toJson(List<Upload> uploads) {
+        StringBuilder out = new StringBuilder(64 + uploads.size() * 160).append("{\"images\":[");
+        for (int i = 0; i < uploads.size(); i++) {
+            Upload upload = uploads.get(i);
+            DecodeResult result = upload.result;
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append("{\"name\":");
+            jsonString(out, upload.name);
+            out.append(",\"status\":\"").append(upload.status).append("\",\"ip\":");
+            jsonString(out, result == null ? "" : result.ip);
+            out.append(",\"path\":\"").append(result == null ? "" : result.path)
+                    .append("\",\"candidates\":").append(result == null ? 0 : result.candidates)
+                    .append(",\"header\":").append(result == null ? -1 : result.header)
+                    .append(String.format(Locale.ROOT, ",\"decodeMs\":%.3f}", upload.decodeMillis));
+        }
+        return out.append("]}").toString();
+    }
+
+    private static void jsonString(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * One uploaded image and, once it has been decoded, what was found in it
+     */
+    public static final class Upload {
+        final String name;
+        final byte[] data;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        // found, none, too_big or error
+        volatile String status = "error";
+        volatile DecodeResult result;
+        volatile double decodeMillis;
+
+        /**
+         * @param name What the client called the image, its file name for multipart uploads
+         * @param data The bytes of the image file
+         */
+        public Upload(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
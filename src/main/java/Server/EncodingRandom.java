@@ -0,0 +1,81 @@
+package Server;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The source of randomness for an encode, which decides where the payload goes and how each value is split between
+ * the red, green and blue channels. Nothing here is shared between threads, so any number of requests can be encoded
+ * at once without fighting over a seed, and handing out numbers doesn't allocate anything.
+ * <p>
+ * threadLocal() is what the server uses. keyed() always hands out the same numbers for the same seed, so an encode can
+ * be reproduced exactly in a test or a benchmark.
+ */
+public abstract class EncodingRandom {
+
+    /**
+     * Returns a random number between 0 (inclusive) and bound (exclusive)
+     *
+     * @param bound The upper bound, must be positive
+     * @return The random number
+     */
+    public abstract int nextInt(int bound);
+
+    /**
+     * The randomness used by the server. It is backed by the ThreadLocalRandom of whichever thread is calling it, so
+     * the one instance is safe to share between all of the request threads.
+     *
+     * @return The shared thread local source
+     */
+    public static EncodingRandom threadLocal() {
+        return ThreadLocalSource.INSTANCE;
+    }
+
+    /**
+     * A deterministic source. Two sources with the same seed hand out the same numbers in the same order. A keyed
+     * source must only be used by one thread at a time, use split() to get one for another thread.
+     *
+     * @param seed The seed to start from
+     * @return A new keyed source
+     */
+    public static Keyed keyed(long seed) {
+        return new Keyed(new SplittableRandom(seed));
+    }
+
+    private static final class ThreadLocalSource extends EncodingRandom {
+
+        static final ThreadLocalSource INSTANCE = new ThreadLocalSource();
+
+        @Override
+        public int nextInt(int bound) {
+            return ThreadLocalRandom.current().nextInt(bound);
+        }
+    }
+
+    /**
+     * A deterministic source backed by a SplittableRandom
+     */
+    public static final class Keyed extends EncodingRandom {
+
+        private final SplittableRandom random;
+
+        private Keyed(SplittableRandom random) {
+            this.random = random;
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return random.nextInt(bound);
+        }
+
+        /**
+         * Splits off a new source which doesn't share any state with this one. The numbers it hands out still only
+         * depend on the seed and on how many times this source was used and split before.
+         *
+         * @return A new keyed source for another thread
+         */
+        public Keyed split() {
+            return new Keyed(random.split());
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package Server;
+
+/**
+ * HeaderMatcher is a tiny state machine that recognizes the header pattern written by Steganography.setHeader(), five
+ * pixels with a value of 11 followed by five with a value of 12. Pixel values are fed in one at a time and each one is
+ * looked at exactly once, so a whole image can be searched in a single linear pass no matter how noisy it is.
+ * <p>
+ * The state is just the number of header pixels matched so far. Since the header is made of two runs, the only way a
+ * mismatch can still be part of a header is an 11, which starts a new one.
+ */
+class HeaderMatcher {
+
+    // Number of header pixels matched so far, 0 - 9
+    private int state;
+
+    /**
+     * Forgets any partial match, used when the next value fed in isn't adjacent to the previous one
+     */
+    void reset() {
+        state = 0;
+    }
+
+    /**
+     * Feeds the value of the next pixel to the matcher
+     *
+     * @param data The integer data stored within the pixel
+     * @return True if this pixel completed a header, the hidden data starts at the following pixel
+     */
+    boolean feed(int data) {
+        if (data == 11) {
+            // a run of more than five 11's still leaves the last five as the start of a header
+            state = state < 5 ? state + 1 : (state == 5 ? 5 : 1);
+        } else if (data == 12 && state >= 5) {
+            state++;
+            if (state == Steganography.HEADER_LENGTH) {
+                state = 0;
+                return true;
+            }
+        } else {
+            state = 0;
+        }
+        return false;
+    }
+}
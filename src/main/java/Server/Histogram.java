@@ -0,0 +1,104 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non negative long values, laid out the same way as HdrHistogram. Every power of two range
+ * is split into 16 buckets and a bucket reports its top value, so a value can read back up to 1/16 (about 6%) high no
+ * matter how big it is, and a recording is just a couple of atomic increments with no allocation. Good enough to pull
+ * p99s out of nanosecond timings.
+ */
+public class Histogram {
+
+    // values below 2^SUB_BITS get a bucket each, every power of two above that gets 2^(SUB_BITS - 1) buckets
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT >> 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, negative values count as 0
+     *
+     * @param value The value to record
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * @return How many values have been recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The sum of every value recorded
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return The biggest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Works out a quantile from the buckets. The result is the biggest value that falls in the same bucket as the
+     * real quantile, but never more than the biggest value recorded.
+     *
+     * @param quantile The quantile to work out, between 0 and 1
+     * @return The value at the quantile, or 0 if nothing has been recorded
+     */
+    public long getValueAt(double quantile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int mantissa = (int) (value >>> shift);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (mantissa - HALF_COUNT);
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long mantissa = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,201 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hides the IP at pixels picked by a secret key instead of in one run of pixels at a random spot. The key and the size
+ * of the image decide which pixels hold the header and the digits, so a decoder that knows the key only has to look at
+ * those 22 pixels instead of searching the whole image. Without the key the payload is just scattered noise, there is
+ * no run of pixels to spot.
+ * <p>
+ * The header values are still written, at the first ten keyed pixels, so the decoder can tell an image that holds a
+ * keyed IP apart from one that doesn't. No delimiter is needed since the payload always has the same length.
+ */
+public class KeyedPlacement {
+
+    // Number of keyed pixels, the header followed by the IP digits
+    static final int PAYLOAD_LENGTH = Steganography.HEADER_LENGTH + Steganography.IP_LENGTH;
+
+    private final byte[] key;
+
+    // the keyed pixels for each image size seen so far, keyed by width << 32 | height
+    private final ConcurrentHashMap<Long, int[]> positions = new ConcurrentHashMap<>();
+
+    /**
+     * @param key The shared secret, the server and the decoder have to use the same one
+     */
+    public KeyedPlacement(String key) {
+        this.key = key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the flat indices of the pixels holding the payload in an image of the given size, in the order the
+     * payload is written. The same key and size always give the same pixels.
+     *
+     * @param width  The width of the image
+     * @param height The height of the image
+     * @return PAYLOAD_LENGTH distinct flat indices. Don't modify it, the array is shared
+     * @throws IllegalArgumentException If the image has fewer than PAYLOAD_LENGTH pixels
+     */
+    int[] positions(int width, int height) {
+        long size = ((long) width << 32) | height;
+        int[] cached = positions.get(size);
+        if (cached != null) {
+            return cached;
+        }
+
+        int pixelCount = width * height;
+        if (pixelCount < PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("A keyed IP needs " + PAYLOAD_LENGTH + " pixels, the image only has "
+                    + pixelCount);
+        }
+
+        SplittableRandom rand = new SplittableRandom(seed(width, height));
+        int[] picked = new int[PAYLOAD_LENGTH];
+        for (int i = 0; i < PAYLOAD_LENGTH; i++) {
+            picked[i] = rand.nextInt(pixelCount);
+
+            // throw out pixels that were already picked, there are only a few so a linear check is fine
+            for (int j = 0; j < i; j++) {
+                if (picked[j] == picked[i]) {
+                    picked[i] = rand.nextInt(pixelCount);
+                    j = -1;
+                }
+            }
+        }
+
+        positions.putIfAbsent(size, picked);
+        return positions.get(size);
+    }
+
+    /**
+     * Hashes the key together with the size of the image, so each size gets its own unrelated set of pixels
+     */
+    private long seed(int width, int height) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(key);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            digest.update((byte) (width >>> shift));
+        }
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            digest.update((byte) (height >>> shift));
+        }
+
+        byte[] hash = digest.digest();
+        long seed = 0;
+        for (int i = 0; i < 8; i++) {
+            seed = (seed << 8) | (hash[i] & 0xFF);
+        }
+        return seed;
+    }
+
+    /**
+     * Hides an IPv4 address at the keyed pixels of the image
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param ipStr  The IPv4 address in a standard string
+     * @param rand   Decides how each value is split between the colors
+     */
+    public void hideIP(PixelRaster raster, String ipStr, EncodingRandom rand) {
+        int[] octet = Steganography.parseIP(ipStr);
+        int[] at = positions(raster.getWidth(), raster.getHeight());
+
+        int p = 0;
+        for (int i = 0; i < Steganography.HEADER_LENGTH; i++) {
+            Steganography.setPixel(raster, at[p++], i < 5 ? 11 : 12, rand);
+        }
+        for (int i = 0; i < 4; i++) {
+            Steganography.setPixel(raster, at[p++], octet[i] / 100, rand);
+            Steganography.setPixel(raster, at[p++], (octet[i] % 100) / 10, rand);
+            Steganography.setPixel(raster, at[p++], octet[i] % 10, rand);
+        }
+    }
+
+    /**
+     * Reads the IP back from the keyed pixels. Only those pixels are looked at, however big the image is.
+     *
+     * @param img The buffered image to inspect
+     * @return The hidden IP, or an empty string if the keyed pixels don't hold one
+     */
+    public String retrieveIP(BufferedImage img) {
+        if (img.getWidth() * img.getHeight() < PAYLOAD_LENGTH) {
+            return "";
+        }
+        return retrieveIP(new PixelRaster(img));
+    }
+
+    /**
+     * Raster version of retrieveIP()
+     *
+     * @param raster The pixel raster of the image to inspect
+     * @return The hidden IP, or an empty string if the keyed pixels don't hold one
+     */
+    public String retrieveIP(PixelRaster raster) {
+        int[] at = positions(raster.getWidth(), raster.getHeight());
+
+        int[] values = new int[PAYLOAD_LENGTH];
+        for (int p = 0; p < PAYLOAD_LENGTH; p++) {
+            values[p] = raster.nibbleSum(at[p]);
+        }
+        return retrieveIP(values);
+    }
+
+    /**
+     * Reads the IP back from the values of the keyed pixels, for decoders that read them some other way than through
+     * a PixelRaster
+     *
+     * @param values The values of the pixels at positions(), in the same order
+     * @return The hidden IP, or an empty string if the keyed pixels don't hold one
+     */
+    String retrieveIP(int[] values) {
+        int p = 0;
+        for (int i = 0; i < Steganography.HEADER_LENGTH; i++) {
+            if (values[p++] != (i < 5 ? 11 : 12)) {
+                return "";
+            }
+        }
+
+        StringBuilder outStr = new StringBuilder(15);
+        for (int j = 0; j < 4; j++) {
+            int octet = 0;
+            for (int k = 0; k < 3; k++) {
+                int digit = values[p++];
+                if (digit > 9) {
+                    return "";
+                }
+                octet = octet * 10 + digit;
+            }
+            if (octet > 255) {
+                return "";
+            }
+
+            if (j > 0) {
+                outStr.append('.');
+            }
+            outStr.append(octet);
+        }
+        return outStr.toString();
+    }
+
+    /**
+     * Decodes an image and reports how the decode went
+     *
+     * @param img The buffered image to inspect
+     * @return The hidden IP with the KEYED path, its header is the first keyed pixel
+     */
+    public DecodeResult decode(BufferedImage img) {
+        String ip = retrieveIP(img);
+        return new DecodeResult(ip, DecodeResult.KEYED, 1,
+                ip.isEmpty() ? -1 : positions(img.getWidth(), img.getHeight())[0]);
+    }
+}
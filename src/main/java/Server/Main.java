@@ -5,12 +5,19 @@ public class Main {
     /**
      * Launch this function to start the server
      *
-     * @param args Don't argue with the server
+     * @param args Don't argue with the server, unless it's one of the options in ServerOptions
      */
     public static void main(String[] args) {
         // write your code here
 
-        webServer server = new webServer();
+        ServerOptions options = ServerOptions.fromArgs(args);
+
+        // has to be set before the first logger is created
+        if (options.logLevel != null) {
+            System.setProperty("org.slf4j.simpleLogger.log.Server", options.logLevel);
+        }
+
+        webServer server = new webServer(options);
         server.start();
 
         /*
@@ -0,0 +1,233 @@
+package Server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Everything the server measures about itself, served in the Prometheus text format on /metrics.
+ * <p>
+ * Each stage of serving an image has a latency histogram and a count of the bytes the measuring thread allocated
+ * while it was in the stage. Timing a stage looks like
+ * <p>
+ * long start = System.nanoTime();
+ * long allocated = Metrics.allocatedBytes();
+ * ...
+ * Metrics.ENCODE.record(start, allocated);
+ * <p>
+ * Recording never allocates or takes a lock, so it is cheap enough to leave on in the hot paths.
+ */
+public final class Metrics {
+
+    // Decoding a carrier image from disk, only happens when the CarrierCache misses
+    public static final Stage LOAD = new Stage("load");
+
+    // Writing the IP into a copy of the carrier
+    public static final Stage ENCODE = new Stage("encode");
+
+    // Compressing the watermarked PNG
+    public static final Stage PNG = new Stage("png");
+
+    // Writing the watermarked image as a QOI, for clients that asked for one
+    public static final Stage QOI = new Stage("qoi");
+
+    // Writing the IP into a pre-rendered watermark and writing it out, see WatermarkPool
+    public static final Stage PATCH = new Stage("patch");
+
+    // Rendering a new watermark for the pool, on the refill threads
+    public static final Stage REFILL = new Stage("refill");
+
+    // Reading the IP back out of a response to check it
+    public static final Stage VERIFY = new Stage("verify");
+
+    // Handing a finished body to Jetty, which includes waiting on the client unless the writes are async
+    public static final Stage WRITE = new Stage("write");
+
+    // Reading an uploaded image and searching it for an IP on the decode pool, see DecodeService
+    public static final Stage DECODE = new Stage("decode");
+
+    private static final Stage[] STAGES = {LOAD, ENCODE, PNG, QOI, PATCH, REFILL, VERIFY, WRITE, DECODE};
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public static final LongAdder RESPONSE_BYTES = new LongAdder();
+    public static final LongAdder CACHE_HITS = new LongAdder();
+    public static final LongAdder CACHE_MISSES = new LongAdder();
+
+    // responses the Verifier read the IP back out of, see Verifier
+    public static final LongAdder VERIFY_PASSES = new LongAdder();
+    public static final LongAdder VERIFY_FAILURES = new LongAdder();
+    public static final LongAdder VERIFY_DROPPED = new LongAdder();
+
+    // images decoded for /decode, the batches the decode pool took them in, and requests turned away with a 503
+    public static final LongAdder DECODE_IMAGES = new LongAdder();
+    public static final LongAdder DECODE_BATCHES = new LongAdder();
+    public static final LongAdder DECODE_REJECTED = new LongAdder();
+
+    // requests per route, only for routes that were registered so random paths can't blow up the output
+    private static final ConcurrentHashMap<String, LongAdder> REQUESTS = new ConcurrentHashMap<>();
+    private static final LongAdder OTHER_REQUESTS = new LongAdder();
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATIONS = allocationsSupported();
+
+    private Metrics() {
+    }
+
+    /**
+     * Starts counting requests to a route
+     *
+     * @param route The path of the route
+     */
+    public static void registerRoute(String route) {
+        REQUESTS.putIfAbsent(route, new LongAdder());
+    }
+
+    /**
+     * Counts a request
+     *
+     * @param path The path that was requested
+     */
+    public static void request(String path) {
+        LongAdder counter = path == null ? null : REQUESTS.get(path);
+        (counter != null ? counter : OTHER_REQUESTS).increment();
+    }
+
+    /**
+     * @return The number of bytes the current thread has allocated so far, or -1 if the JVM can't tell
+     */
+    public static long allocatedBytes() {
+        if (!ALLOCATIONS) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static boolean allocationsSupported() {
+        try {
+            if (THREADS instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()) {
+                ((com.sun.management.ThreadMXBean) THREADS).setThreadAllocatedMemoryEnabled(true);
+                return true;
+            }
+        } catch (UnsupportedOperationException | LinkageError e) {
+            // not a HotSpot JVM, go without
+        }
+        return false;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format
+     *
+     * @param out Where to write the metrics to
+     */
+    public static void write(StringBuilder out) {
+        out.append("# HELP stega_stage_seconds Time spent in each stage of serving an image\n");
+        out.append("# TYPE stega_stage_seconds summary\n");
+        for (Stage stage : STAGES) {
+            Histogram h = stage.nanos;
+            for (double q : QUANTILES) {
+                out.append("stega_stage_seconds{stage=\"").append(stage.name).append("\",quantile=\"").append(q)
+                        .append("\"} ").append(seconds(h.getValueAt(q))).append('\n');
+            }
+            out.append("stega_stage_seconds_sum{stage=\"").append(stage.name).append("\"} ")
+                    .append(seconds(h.getSum())).append('\n');
+            out.append("stega_stage_seconds_count{stage=\"").append(stage.name).append("\"} ")
+                    .append(h.getCount()).append('\n');
+        }
+
+        if (ALLOCATIONS) {
+            out.append("# HELP stega_stage_allocated_bytes_total Bytes allocated by the thread running each stage\n");
+            out.append("# TYPE stega_stage_allocated_bytes_total counter\n");
+            for (Stage stage : STAGES) {
+                out.append("stega_stage_allocated_bytes_total{stage=\"").append(stage.name).append("\"} ")
+                        .append(stage.allocated.sum()).append('\n');
+            }
+        }
+
+        out.append("# HELP stega_requests_total Requests by route\n");
+        out.append("# TYPE stega_requests_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(REQUESTS).entrySet()) {
+            out.append("stega_requests_total{route=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+        out.append("stega_requests_total{route=\"other\"} ").append(OTHER_REQUESTS.sum()).append('\n');
+
+        counter(out, "stega_response_bytes_total", "Bytes of response bodies written", RESPONSE_BYTES.sum());
+        counter(out, "stega_carrier_cache_hits_total", "Carrier lookups answered from the cache", CACHE_HITS.sum());
+        counter(out, "stega_carrier_cache_misses_total", "Carrier lookups that had to decode the image",
+                CACHE_MISSES.sum());
+        counter(out, "stega_verify_passes_total", "Responses the IP was read back out of", VERIFY_PASSES.sum());
+        counter(out, "stega_verify_failures_total", "Responses the IP couldn't be read back out of",
+                VERIFY_FAILURES.sum());
+        counter(out, "stega_verify_dropped_total", "Checks skipped because the verifier was behind",
+                VERIFY_DROPPED.sum());
+        counter(out, "stega_decode_images_total", "Uploaded images searched for an IP", DECODE_IMAGES.sum());
+        counter(out, "stega_decode_batches_total", "Batches the decode pool took the images in",
+                DECODE_BATCHES.sum());
+        counter(out, "stega_decode_rejected_total", "Decode requests turned away because the queue was full",
+                DECODE_REJECTED.sum());
+    }
+
+    /**
+     * Writes a single counter
+     */
+    public static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes a single gauge
+     */
+    public static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(String.format(Locale.ROOT, "%.6f", value)).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * The latency and allocations of one stage
+     */
+    public static final class Stage {
+        final String name;
+        final Histogram nanos = new Histogram();
+        final LongAdder allocated = new LongAdder();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records one pass through the stage that started at the given time and allocation count
+         *
+         * @param startNanos     System.nanoTime() when the stage started
+         * @param startAllocated Metrics.allocatedBytes() when the stage started
+         */
+        public void record(long startNanos, long startAllocated) {
+            nanos.record(System.nanoTime() - startNanos);
+            if (startAllocated >= 0) {
+                long now = allocatedBytes();
+                if (now >= startAllocated) {
+                    allocated.add(now - startAllocated);
+                }
+            }
+        }
+
+        /**
+         * @return The latencies of the stage, in nanoseconds
+         */
+        public Histogram getHistogram() {
+            return nanos;
+        }
+    }
+}
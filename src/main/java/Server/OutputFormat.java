@@ -0,0 +1,185 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The image formats /stega can send a watermarked carrier in, and the content negotiation that picks one for a
+ * request. PNG is what every client can show. QOI is lossless as well and several times cheaper to encode, but
+ * browsers can't show it, so it only goes to clients that ask for image/qoi by name in their Accept header. Both are
+ * written from a template of the carrier, so only the rows the IP went into are encoded again. See PngBenchmark.
+ * <p>
+ * The server offers a list of formats (--formats=png,qoi), the first one being the default. The default is sent
+ * unless the client names another offered format exactly with a quality at least as high as the default gets. Wild
+ * cards like image/* and the catch-all type only ever count for the default, since browsers send them for every
+ * image.
+ */
+public abstract class OutputFormat {
+
+    // Compressed against the carrier's PngTemplate, so only the rows that changed are deflated again
+    public static final OutputFormat PNG = new OutputFormat("png", "image/png", Metrics.PNG) {
+        @Override
+        void write(CarrierCache.Carrier carrier, BufferedImage img, PixelRaster raster, OutputStream out)
+                throws IOException {
+            carrier.getTemplate().write(out, img, raster.firstDirtyRow(), raster.lastDirtyRow());
+        }
+    };
+
+    // Encoded against the carrier's QoiTemplate, so only the rows that changed are encoded again
+    public static final OutputFormat QOI = new OutputFormat("qoi", QoiEncoder.CONTENT_TYPE, Metrics.QOI) {
+        @Override
+        void write(CarrierCache.Carrier carrier, BufferedImage img, PixelRaster raster, OutputStream out)
+                throws IOException {
+            carrier.getQoiTemplate().write(out, img, raster.firstDirtyRow(), raster.lastDirtyRow());
+        }
+    };
+
+    private static final OutputFormat[] ALL = {PNG, QOI};
+
+    private final String name;
+    private final String contentType;
+    private final Metrics.Stage stage;
+
+    private OutputFormat(String name, String contentType, Metrics.Stage stage) {
+        this.name = name;
+        this.contentType = contentType;
+        this.stage = stage;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return The metrics stage the encoding time goes to
+     */
+    public Metrics.Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Writes out a watermarked copy of a carrier
+     *
+     * @param carrier The carrier the image is a copy of
+     * @param img     The watermarked copy
+     * @param raster  The raster the watermark was written through, it knows which rows changed
+     * @param out     Where the image goes
+     * @throws IOException If writing to the stream fails
+     */
+    abstract void write(CarrierCache.Carrier carrier, BufferedImage img, PixelRaster raster, OutputStream out)
+            throws IOException;
+
+    /**
+     * @param names The names of formats separated by commas, like png,qoi
+     * @return The formats in the same order
+     * @throws IllegalArgumentException If a name isn't a known format or there are none
+     */
+    public static List<OutputFormat> parse(String names) {
+        List<OutputFormat> formats = new ArrayList<>();
+        for (String name : names.split(",")) {
+            OutputFormat format = forName(name.trim());
+            if (format == null) {
+                throw new IllegalArgumentException("Unknown format " + name + ", the formats are png and qoi");
+            }
+            if (!formats.contains(format)) {
+                formats.add(format);
+            }
+        }
+        if (formats.isEmpty()) {
+            throw new IllegalArgumentException("At least one format has to be offered");
+        }
+        return formats;
+    }
+
+    /**
+     * @param name A format name, in any case
+     * @return The format, or null if there isn't one by that name
+     */
+    public static OutputFormat forName(String name) {
+        for (OutputFormat format : ALL) {
+            if (format.name.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the format to answer a request with
+     *
+     * @param accept  The Accept header of the request, may be null
+     * @param offered The formats the server offers, the first one is the default
+     * @return One of the offered formats, the default if the client doesn't name a better one
+     */
+    public static OutputFormat negotiate(String accept, List<OutputFormat> offered) {
+        OutputFormat fallback = offered.get(0);
+        if (accept == null || offered.size() == 1) {
+            return fallback;
+        }
+
+        // the other formats only count when they are named, the first one named with the highest quality wins
+        OutputFormat named = null;
+        double namedQuality = 0;
+        for (int i = 1; i < offered.size(); i++) {
+            double q = quality(accept, offered.get(i).contentType, false);
+            if (q > namedQuality) {
+                named = offered.get(i);
+                namedQuality = q;
+            }
+        }
+        return named != null && namedQuality >= quality(accept, fallback.contentType, true) ? named : fallback;
+    }
+
+    /**
+     * How much the client wants a content type, taken from the most specific media range that matches it
+     *
+     * @param accept     The Accept header
+     * @param type       The content type, like image/png
+     * @param wildcards  True if wild cards count, otherwise only the exact type does
+     * @return The quality from 0 to 1, 0 if nothing matches
+     */
+    static double quality(String accept, String type, boolean wildcards) {
+        String major = type.substring(0, type.indexOf('/') + 1) + "*";
+        double quality = 0;
+        int specificity = -1;
+
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String media = parts[0].trim().toLowerCase(Locale.ROOT);
+            int matched = -1;
+            if (media.equals(type)) {
+                matched = 2;
+            } else if (wildcards && media.equals(major)) {
+                matched = 1;
+            } else if (wildcards && media.equals("*/*")) {
+                matched = 0;
+            }
+            if (matched <= specificity) {
+                continue;
+            }
+
+            double q = 1;
+            for (int p = 1; p < parts.length; p++) {
+                String param = parts[p].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Math.max(0, Math.min(1, Double.parseDouble(param.substring(2))));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            quality = q;
+            specificity = matched;
+        }
+        return quality;
+    }
+}
@@ -0,0 +1,143 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The parallel version of Steganography.retrieveIP(). Big images are split into bands of rows which are searched for
+ * the header at the same time on a ForkJoinPool, the bands are a PixelCursor over the whole image split in half until
+ * they are small enough. A band searches every header position inside of it and reads past its last row as far as it
+ * needs to, so a header crossing the boundary between two bands is still found by the band it starts in.
+ * <p>
+ * As soon as a band finds a header, every band that starts after it is skipped. The header closest to the start of
+ * the image still wins, so the result is always the same as the single threaded search.
+ */
+public class ParallelDecoder {
+
+    /**
+     * Images with more pixels than this are decoded in parallel. Can be changed with -Dstega.parallelThreshold
+     */
+    public static final int DEFAULT_THRESHOLD = Integer.getInteger("stega.parallelThreshold", 2000000);
+
+    // Roughly how many pixels each band should hold, small enough to stop early and big enough to be worth a task
+    private static final int BAND_PIXELS = 1 << 16;
+
+    /**
+     * Pulls the hidden IP out of an image, in parallel if the image is bigger than the default threshold
+     *
+     * @param img The buffered image to inspect
+     * @return Returns a string containing the IP that was hidden in the image. Otherwise it returns an empty string
+     */
+    public static String retrieveIP(BufferedImage img) {
+        return retrieveIP(img, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Pulls the hidden IP out of an image, in parallel if the image has more pixels than the threshold
+     *
+     * @param img       The buffered image to inspect
+     * @param threshold The pixel count above which the image is searched in parallel
+     * @return Returns a string containing the IP that was hidden in the image. Otherwise it returns an empty string
+     */
+    public static String retrieveIP(BufferedImage img, int threshold) {
+        return decode(img, threshold).ip;
+    }
+
+    /**
+     * Decodes an image with the default threshold and reports how the decode went
+     *
+     * @param img The buffered image to inspect
+     * @return The hidden IP and the path the decoder took
+     */
+    public static DecodeResult decode(BufferedImage img) {
+        return decode(img, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Decodes an image and reports how the decode went. Every part of the image goes through the PreScanFilter first,
+     * so only the few spots that could hold a header are looked at closely.
+     *
+     * @param img       The buffered image to inspect
+     * @param threshold The pixel count above which the image is searched in parallel
+     * @return The hidden IP and the path the decoder took
+     */
+    public static DecodeResult decode(BufferedImage img, int threshold) {
+        PixelRaster raster = PixelRaster.forReading(img);
+        AtomicInteger candidates = new AtomicInteger();
+
+        int index;
+        if (raster.getPixelCount() <= threshold) {
+            index = PreScanFilter.findSecret(raster, 0, raster.getPixelCount(), candidates);
+        } else {
+            index = findSecret(raster, ForkJoinPool.commonPool(), candidates);
+        }
+
+        String ip = index < 0 ? "" : Steganography.readIP(raster, index);
+        String path = candidates.get() == 0 ? DecodeResult.REJECTED : DecodeResult.VERIFIED;
+        return new DecodeResult(ip, path, candidates.get(), index < 0 ? -1 : index - Steganography.HEADER_LENGTH);
+    }
+
+    /**
+     * Searches the whole raster for the header using the supplied pool
+     *
+     * @param raster     The pixel raster of the image to inspect
+     * @param pool       The pool to run the bands on
+     * @param candidates Counts the header candidates checked by all of the bands
+     * @return The flat index of the first pixel after the first header, or -1 if there is no header in the image
+     */
+    static int findSecret(PixelRaster raster, ForkJoinPool pool, AtomicInteger candidates) {
+        AtomicInteger found = new AtomicInteger(Integer.MAX_VALUE);
+        int bandPixels = Math.max(BAND_PIXELS, raster.getWidth());
+
+        pool.invoke(new Band(raster, PixelCursor.over(raster), bandPixels, found, candidates));
+
+        int index = found.get();
+        return index == Integer.MAX_VALUE ? -1 : index;
+    }
+
+    /**
+     * A range of header positions to search. Ranges bigger than a band are split in half, on a row boundary, until
+     * they aren't.
+     */
+    private static class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PixelRaster raster;
+        private final PixelCursor cursor;
+        private final int bandPixels;
+        private final AtomicInteger found;
+        private final AtomicInteger candidates;
+
+        Band(PixelRaster raster, PixelCursor cursor, int bandPixels, AtomicInteger found, AtomicInteger candidates) {
+            this.raster = raster;
+            this.cursor = cursor;
+            this.bandPixels = bandPixels;
+            this.found = found;
+            this.candidates = candidates;
+        }
+
+        @Override
+        protected void compute() {
+
+            // An earlier band already found a header, nothing in here can beat it
+            if (cursor.index() >= found.get()) {
+                return;
+            }
+
+            PixelCursor first = cursor.remaining() > bandPixels ? cursor.trySplit() : null;
+            if (first != null) {
+                invokeAll(new Band(raster, first, bandPixels, found, candidates),
+                        new Band(raster, cursor, bandPixels, found, candidates));
+                return;
+            }
+
+            int index = PreScanFilter.findSecret(raster, cursor.index(), cursor.end(), candidates);
+            if (index >= 0) {
+                found.accumulateAndGet(index, Math::min);
+            }
+        }
+    }
+}
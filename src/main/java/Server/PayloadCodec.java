@@ -0,0 +1,192 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.util.zip.CRC32;
+
+/**
+ * Hides arbitrary bytes in an image. hideIP() stores one decimal digit per pixel as the sum of the low nibbles of the
+ * colors, which is simple but only fits about 3.3 bits in a pixel. This codec uses the whole low nibble of every color
+ * instead, 12 bits per pixel, so user IDs, timestamps, document IDs or IPv6 addresses fit in a handful of pixels.
+ * <p>
+ * A frame is laid out over consecutive pixels starting at a random position:
+ * <p>
+ * MAGIC (3 pixels) | LENGTH (2 pixels) | PAYLOAD + CRC-32 packed 12 bits to a pixel
+ * <p>
+ * The length pixels hold the payload length in 16 bits and an 8 bit check of it, so the decoder can throw out most
+ * accidental magic matches without reading any further. The CRC-32 of the payload catches the rest.
+ */
+public class PayloadCodec {
+
+    // The three 12 bit values a frame starts with
+    static final int MAGIC0 = 0xA5C;
+    static final int MAGIC1 = 0x3E1;
+    static final int MAGIC2 = 0xB72;
+
+    static final int MAGIC_PIXELS = 3;
+    static final int LENGTH_PIXELS = 2;
+
+    // The most bytes a single frame can carry
+    public static final int MAX_PAYLOAD = 0xFFFF;
+
+    /**
+     * Works out how many pixels a payload takes up once it's framed
+     *
+     * @param payloadLength The number of bytes to hide
+     * @return The number of consecutive pixels needed
+     */
+    public static int pixelsFor(int payloadLength) {
+        int bits = (payloadLength + 4) * 8;
+        return MAGIC_PIXELS + LENGTH_PIXELS + (bits + 11) / 12;
+    }
+
+    /**
+     * Hides the payload in the image at a random position
+     *
+     * @param img     The buffered image to modify
+     * @param payload The bytes to hide, at most MAX_PAYLOAD of them
+     * @throws IllegalArgumentException If the payload is too big for the frame format or the image
+     */
+    public static void encode(BufferedImage img, byte[] payload) {
+        encode(new PixelRaster(img), payload);
+    }
+
+    /**
+     * Raster version of encode()
+     *
+     * @param raster  The pixel raster of the image to modify
+     * @param payload The bytes to hide, at most MAX_PAYLOAD of them
+     * @throws IllegalArgumentException If the payload is too big for the frame format or the image
+     */
+    public static void encode(PixelRaster raster, byte[] payload) {
+        encode(raster, payload, EncodingRandom.threadLocal());
+    }
+
+    /**
+     * encode() with a chosen source of randomness for the position of the frame
+     *
+     * @param raster  The pixel raster of the image to modify
+     * @param payload The bytes to hide, at most MAX_PAYLOAD of them
+     * @param rand    Picks where the frame starts
+     * @throws IllegalArgumentException If the payload is too big for the frame format or the image
+     */
+    public static void encode(PixelRaster raster, byte[] payload, EncodingRandom rand) {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payloads are limited to " + MAX_PAYLOAD + " bytes");
+        }
+        int pixels = pixelsFor(payload.length);
+        int lastStart = raster.getPixelCount() - pixels;
+        if (lastStart < 0) {
+            throw new IllegalArgumentException("A " + payload.length + " byte payload needs " + pixels
+                    + " pixels, the image only has " + raster.getPixelCount());
+        }
+
+        int index = rand.nextInt(lastStart + 1);
+
+        write(raster, index++, MAGIC0);
+        write(raster, index++, MAGIC1);
+        write(raster, index++, MAGIC2);
+
+        int length = payload.length;
+        write(raster, index++, length >>> 4);
+        write(raster, index++, ((length & 15) << 8) | lengthCheck(length));
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        long crcValue = crc.getValue();
+
+        // Pack the payload and its CRC into the pixels, 12 bits at a time
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < length + 4; i++) {
+            int b = i < length ? payload[i] & 0xFF : (int) (crcValue >>> (8 * (3 - (i - length)))) & 0xFF;
+            bits = (bits << 8) | b;
+            bitCount += 8;
+            if (bitCount >= 12) {
+                bitCount -= 12;
+                write(raster, index++, (bits >>> bitCount) & 0xFFF);
+            }
+        }
+        if (bitCount > 0) {
+            write(raster, index, (bits << (12 - bitCount)) & 0xFFF);
+        }
+    }
+
+    /**
+     * Pulls a hidden payload back out of an image
+     *
+     * @param img The buffered image to inspect
+     * @return The first valid payload in the image, or null if there isn't one
+     */
+    public static byte[] decode(BufferedImage img) {
+        return decode(PixelRaster.forReading(img));
+    }
+
+    /**
+     * Raster version of decode()
+     *
+     * @param raster The pixel raster of the image to inspect
+     * @return The first valid payload in the image, or null if there isn't one
+     */
+    public static byte[] decode(PixelRaster raster) {
+        int count = raster.getPixelCount();
+        int lastStart = count - pixelsFor(0);
+
+        for (int start = 0; start <= lastStart; start++) {
+            if (raster.nibbles(start) != MAGIC0
+                    || raster.nibbles(start + 1) != MAGIC1
+                    || raster.nibbles(start + 2) != MAGIC2) {
+                continue;
+            }
+            byte[] payload = readFrame(raster, start);
+            if (payload != null) {
+                return payload;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the frame whose magic starts at the given pixel
+     *
+     * @return The payload, or null if the length or CRC don't check out
+     */
+    private static byte[] readFrame(PixelRaster raster, int start) {
+        int index = start + MAGIC_PIXELS;
+        int high = raster.nibbles(index++);
+        int low = raster.nibbles(index++);
+        int length = (high << 4) | (low >>> 8);
+        if ((low & 0xFF) != lengthCheck(length) || start + pixelsFor(length) > raster.getPixelCount()) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        long crcValue = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < length + 4; i++) {
+            if (bitCount < 8) {
+                bits = (bits << 12) | raster.nibbles(index++);
+                bitCount += 12;
+            }
+            bitCount -= 8;
+            int b = (bits >>> bitCount) & 0xFF;
+            if (i < length) {
+                payload[i] = (byte) b;
+            } else {
+                crcValue = (crcValue << 8) | b;
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue() == crcValue ? payload : null;
+    }
+
+    private static int lengthCheck(int length) {
+        return ((length >>> 8) + (length & 0xFF) + 0x5A) & 0xFF;
+    }
+
+    private static void write(PixelRaster raster, int index, int value) {
+        raster.writeNibbles(index, value >>> 8, (value >>> 4) & 15, value & 15);
+    }
+}
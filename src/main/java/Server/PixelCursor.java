@@ -0,0 +1,176 @@
+package Server;
+
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A position in an image as a plain flat index, y * width + x, the same index PixelRaster works with. Moving to the
+ * next pixel is just an increment, wrapping onto the next row comes for free, and the cursor stops at the end of its
+ * range instead of throwing.
+ * <p>
+ * A cursor covers a range of pixels and is also a Spliterator over their flat indices, so a scan can be handed to
+ * stream() or split with trySplit() and searched in parallel. Splits land on row boundaries where the range is more
+ * than a couple of rows long. One cursor is meant to be made per scan and moved along, not one per pixel.
+ */
+public final class PixelCursor implements Spliterator.OfInt {
+
+    private final int width;
+    private final int end;
+    private int index;
+
+    /**
+     * @param width The width of the image
+     * @param index The flat index of the first pixel of the range
+     * @param end   The flat index one past the last pixel of the range
+     */
+    public PixelCursor(int width, int index, int end) {
+        if (width <= 0 || index < 0 || index > end) {
+            throw new IllegalArgumentException("Bad cursor range " + index + " - " + end + " for width " + width);
+        }
+        this.width = width;
+        this.index = index;
+        this.end = end;
+    }
+
+    /**
+     * @param raster The pixel raster to walk over
+     * @return A cursor over every pixel of the raster, starting at the first one
+     */
+    public static PixelCursor over(PixelRaster raster) {
+        return new PixelCursor(raster.getWidth(), 0, raster.getPixelCount());
+    }
+
+    /**
+     * @param raster The pixel raster to walk over
+     * @param index  The flat index to start at
+     * @return A cursor from the given pixel to the end of the raster
+     */
+    public static PixelCursor at(PixelRaster raster, int index) {
+        return new PixelCursor(raster.getWidth(), index, raster.getPixelCount());
+    }
+
+    /**
+     * @return The flat index of the current pixel
+     */
+    public int index() {
+        return index;
+    }
+
+    public int x() {
+        return index % width;
+    }
+
+    public int y() {
+        return index / width;
+    }
+
+    /**
+     * @return The flat index one past the last pixel of the range
+     */
+    public int end() {
+        return end;
+    }
+
+    /**
+     * @return How many pixels are left, counting the current one
+     */
+    public int remaining() {
+        return end - index;
+    }
+
+    /**
+     * @return True if the cursor is still on a pixel of its range
+     */
+    public boolean hasNext() {
+        return index < end;
+    }
+
+    /**
+     * Returns the current pixel and moves on to the next one. Check hasNext() first, this doesn't
+     *
+     * @return The flat index the cursor was on
+     */
+    public int next() {
+        return index++;
+    }
+
+    /**
+     * Moves the cursor forward, stopping at the end of the range
+     *
+     * @param pixels How many pixels to move forward
+     * @return False if that went off the end of the range
+     */
+    public boolean advance(int pixels) {
+        index = (int) Math.min((long) index + pixels, end);
+        return index < end;
+    }
+
+    @Override
+    public boolean tryAdvance(IntConsumer action) {
+        if (index >= end) {
+            return false;
+        }
+        action.accept(index++);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(IntConsumer action) {
+        int i = index;
+        int last = end;
+        index = last;
+        for (; i < last; i++) {
+            action.accept(i);
+        }
+    }
+
+    /**
+     * Hands the first half of the remaining pixels to a new cursor and keeps the second half, so the halves stay in
+     * image order. The split is moved back to the start of a row if there is a row boundary to move it to.
+     *
+     * @return A cursor over the first half, or null if there is only one pixel left
+     */
+    @Override
+    public PixelCursor trySplit() {
+        int middle = index + ((end - index) >>> 1);
+        int rowStart = middle - middle % width;
+        if (rowStart > index) {
+            middle = rowStart;
+        }
+        if (middle <= index) {
+            return null;
+        }
+        PixelCursor prefix = new PixelCursor(width, index, middle);
+        index = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - index;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | SORTED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+
+    /**
+     * The indices come out in their natural order
+     */
+    @Override
+    public Comparator<? super Integer> getComparator() {
+        return null;
+    }
+
+    /**
+     * @param parallel True to let the stream split the range over the common pool
+     * @return The flat indices left in the range. The stream takes the cursor over, don't move it afterwards
+     */
+    public IntStream stream(boolean parallel) {
+        return StreamSupport.intStream(this, parallel);
+    }
+}
@@ -0,0 +1,394 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+
+/**
+ * PixelRaster is the bulk pixel engine behind the Steganography class. Instead of going through getRGB() and a fresh
+ * Color object for every pixel, it grabs the backing array of the image's WritableRaster once and reads or writes the
+ * low nibbles of each color channel in place. Pixels are addressed by a flat index, which is simply y * width + x.
+ * <p>
+ * The common layouts handed out by ImageIO (3 byte BGR, 4 byte ABGR) and the int packed RGB/ARGB layouts are worked
+ * on directly. Anything else (palettes, gray scale, premultiplied alpha...) falls back to getRGB() and setRGB() so the
+ * caller's image is still modified in place. Read only callers can use forReading() to normalize those odd images to
+ * a packed int layout once up front.
+ */
+public class PixelRaster {
+
+    // The pixel layouts the engine knows how to work with
+    static final int INT_RGB = 0;
+    static final int INT_ARGB = 1;
+    static final int BYTE_BGR = 2;
+    static final int BYTE_ABGR = 3;
+    static final int GENERIC = 4;
+
+    private final BufferedImage img;
+    private final int width;
+    private final int height;
+    private final int layout;
+    private final int[] ints;
+    private final byte[] bytes;
+
+    // the lowest and highest flat index written through this raster, used to only re-encode the rows that changed
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = -1;
+
+    /**
+     * Wraps the supplied image. Any writes made through this object show up in the image itself.
+     *
+     * @param image The buffered image to work on
+     */
+    public PixelRaster(BufferedImage image) {
+        img = image;
+        width = image.getWidth();
+        height = image.getHeight();
+        layout = layoutOf(image);
+
+        WritableRaster raster = image.getRaster();
+        if (layout == INT_RGB || layout == INT_ARGB) {
+            ints = ((DataBufferInt) raster.getDataBuffer()).getData();
+            bytes = null;
+        } else if (layout == BYTE_BGR || layout == BYTE_ABGR) {
+            ints = null;
+            bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+        } else {
+            ints = null;
+            bytes = null;
+        }
+    }
+
+    /**
+     * Builds a raster for read only work. If the image isn't in a layout the engine can address directly it is
+     * copied once into a packed int image, which is a lot cheaper than taking the getRGB() path for every pixel.
+     *
+     * @param image The buffered image to inspect
+     * @return A PixelRaster over either the image itself or a normalized copy of it
+     */
+    public static PixelRaster forReading(BufferedImage image) {
+        return new PixelRaster(normalize(image));
+    }
+
+    /**
+     * Returns the image in a layout the engine can address directly. Images that are already in one are returned as
+     * is, everything else is copied into a TYPE_INT_RGB or TYPE_INT_ARGB image with the exact same pixel values.
+     *
+     * @param image The buffered image to normalize
+     * @return The same image or a packed int copy of it
+     */
+    public static BufferedImage normalize(BufferedImage image) {
+        if (layoutOf(image) != GENERIC) {
+            return image;
+        }
+        return toPackedInt(image);
+    }
+
+    /**
+     * Returns the image as TYPE_INT_RGB, or TYPE_INT_ARGB if it has an alpha channel. Images that aren't already
+     * stored that way are copied, keeping the exact same pixel values.
+     *
+     * @param image The buffered image to convert
+     * @return The same image or a packed int copy of it
+     */
+    public static BufferedImage toPackedInt(BufferedImage image) {
+        int layout = layoutOf(image);
+        if (layout == INT_RGB || layout == INT_ARGB) {
+            return image;
+        }
+
+        int w = image.getWidth();
+        int h = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        BufferedImage copy = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+        image.getRGB(0, 0, w, h, data, 0, w);
+
+        return copy;
+    }
+
+    /**
+     * Figures out which of the supported layouts an image is stored in. The raster has to start at the very beginning
+     * of its data buffer with no padding between rows for the direct paths to be used.
+     */
+    static int layoutOf(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || raster.getDataBuffer().getNumBanks() != 1 || raster.getDataBuffer().getOffset() != 0) {
+            return GENERIC;
+        }
+
+        int pixels = image.getWidth() * image.getHeight();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+                return raster.getDataBuffer().getSize() == pixels ? INT_RGB : GENERIC;
+            case BufferedImage.TYPE_INT_ARGB:
+                return raster.getDataBuffer().getSize() == pixels ? INT_ARGB : GENERIC;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return raster.getDataBuffer().getSize() == pixels * 3 ? BYTE_BGR : GENERIC;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return raster.getDataBuffer().getSize() == pixels * 4 ? BYTE_ABGR : GENERIC;
+            default:
+                return GENERIC;
+        }
+    }
+
+    public BufferedImage getImage() {
+        return img;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPixelCount() {
+        return width * height;
+    }
+
+    /**
+     * @return The first row that has been written to through this raster, or -1 if nothing has been written
+     */
+    public int firstDirtyRow() {
+        return dirtyTo < 0 ? -1 : dirtyFrom / width;
+    }
+
+    /**
+     * @return The last row that has been written to through this raster, or -1 if nothing has been written
+     */
+    public int lastDirtyRow() {
+        return dirtyTo < 0 ? -1 : dirtyTo / width;
+    }
+
+    /**
+     * Reads the data hidden in a single pixel, the sum of the least significant hex digit of the red, green and blue
+     * values.
+     *
+     * @param index The flat index of the pixel, y * width + x
+     * @return The integer data stored within the pixel
+     */
+    public int nibbleSum(int index) {
+        switch (layout) {
+            case INT_RGB:
+            case INT_ARGB:
+                return nibbleSumOf(ints[index]);
+            case BYTE_BGR: {
+                int off = index * 3;
+                return (bytes[off] & 15) + (bytes[off + 1] & 15) + (bytes[off + 2] & 15);
+            }
+            case BYTE_ABGR: {
+                int off = index * 4;
+                return (bytes[off + 1] & 15) + (bytes[off + 2] & 15) + (bytes[off + 3] & 15);
+            }
+            default:
+                return nibbleSumOf(img.getRGB(index % width, index / width));
+        }
+    }
+
+    /**
+     * Reads the least significant hex digit of the red, green and blue values of a pixel as one 12 bit number, red
+     * being the most significant. This is what PayloadCodec stores its data in.
+     *
+     * @param index The flat index of the pixel, y * width + x
+     * @return The low nibbles of the pixel, 0 - 4095
+     */
+    public int nibbles(int index) {
+        switch (layout) {
+            case INT_RGB:
+            case INT_ARGB:
+                return nibblesOf(ints[index]);
+            case BYTE_BGR: {
+                int off = index * 3;
+                return ((bytes[off + 2] & 15) << 8) | ((bytes[off + 1] & 15) << 4) | (bytes[off] & 15);
+            }
+            case BYTE_ABGR: {
+                int off = index * 4;
+                return ((bytes[off + 3] & 15) << 8) | ((bytes[off + 2] & 15) << 4) | (bytes[off + 1] & 15);
+            }
+            default:
+                return nibblesOf(img.getRGB(index % width, index / width));
+        }
+    }
+
+    /**
+     * The low nibbles of the red, green and blue values of a packed RGB int as one 12 bit number
+     *
+     * @param rgb A pixel in the default RGB color model
+     * @return The low nibbles of the pixel, 0 - 4095
+     */
+    public static int nibblesOf(int rgb) {
+        return ((rgb >> 8) & 0xF00) | ((rgb >> 4) & 0xF0) | (rgb & 15);
+    }
+
+    /**
+     * Finds the next pixel holding a given value, only looking at every step'th pixel. This is the hot loop of the
+     * PreScanFilter so each layout gets its own tight loop over the backing array.
+     *
+     * @param value The integer data to look for
+     * @param from  The flat index of the first pixel to look at
+     * @param to    The flat index to stop at, not included
+     * @param step  The distance between the pixels that are looked at
+     * @return The flat index of the first matching pixel, or -1 if there isn't one
+     */
+    public int indexOfSum(int value, int from, int to, int step) {
+        switch (layout) {
+            case INT_RGB:
+            case INT_ARGB:
+                for (int i = from; i < to; i += step) {
+                    int rgb = ints[i];
+                    if (((rgb >> 16) & 15) + ((rgb >> 8) & 15) + (rgb & 15) == value) {
+                        return i;
+                    }
+                }
+                return -1;
+            case BYTE_BGR:
+                for (int i = from, off = from * 3; i < to; i += step, off += step * 3) {
+                    if ((bytes[off] & 15) + (bytes[off + 1] & 15) + (bytes[off + 2] & 15) == value) {
+                        return i;
+                    }
+                }
+                return -1;
+            case BYTE_ABGR:
+                for (int i = from, off = from * 4; i < to; i += step, off += step * 4) {
+                    if ((bytes[off + 1] & 15) + (bytes[off + 2] & 15) + (bytes[off + 3] & 15) == value) {
+                        return i;
+                    }
+                }
+                return -1;
+            default:
+                for (int i = from; i < to; i += step) {
+                    if (nibbleSum(i) == value) {
+                        return i;
+                    }
+                }
+                return -1;
+        }
+    }
+
+    /**
+     * The sum of the low nibbles of the red, green and blue values of a packed RGB int
+     *
+     * @param rgb A pixel in the default RGB color model
+     * @return The integer data stored within the pixel
+     */
+    public static int nibbleSumOf(int rgb) {
+        return ((rgb >> 16) & 15) + ((rgb >> 8) & 15) + (rgb & 15);
+    }
+
+    /**
+     * Reads a whole pixel
+     *
+     * @param index The flat index of the pixel, y * width + x
+     * @return The pixel as a packed RGB int, without its alpha
+     */
+    public int rgb(int index) {
+        switch (layout) {
+            case INT_RGB:
+            case INT_ARGB:
+                return ints[index] & 0xFFFFFF;
+            case BYTE_BGR: {
+                int off = index * 3;
+                return ((bytes[off + 2] & 0xFF) << 16) | ((bytes[off + 1] & 0xFF) << 8) | (bytes[off] & 0xFF);
+            }
+            case BYTE_ABGR: {
+                int off = index * 4;
+                return ((bytes[off + 3] & 0xFF) << 16) | ((bytes[off + 2] & 0xFF) << 8) | (bytes[off + 1] & 0xFF);
+            }
+            default:
+                return img.getRGB(index % width, index / width) & 0xFFFFFF;
+        }
+    }
+
+    /**
+     * Replaces the red, green and blue values of a pixel, its alpha is left alone
+     *
+     * @param index The flat index of the pixel, y * width + x
+     * @param rgb   The new color as a packed RGB int, anything above the low 24 bits is ignored
+     */
+    public void writeRGB(int index, int rgb) {
+        if (index < dirtyFrom) dirtyFrom = index;
+        if (index > dirtyTo) dirtyTo = index;
+
+        switch (layout) {
+            case INT_RGB:
+            case INT_ARGB:
+                ints[index] = (ints[index] & 0xFF000000) | (rgb & 0xFFFFFF);
+                break;
+            case BYTE_BGR: {
+                int off = index * 3;
+                bytes[off] = (byte) rgb;
+                bytes[off + 1] = (byte) (rgb >> 8);
+                bytes[off + 2] = (byte) (rgb >> 16);
+                break;
+            }
+            case BYTE_ABGR: {
+                int off = index * 4;
+                bytes[off + 1] = (byte) rgb;
+                bytes[off + 2] = (byte) (rgb >> 8);
+                bytes[off + 3] = (byte) (rgb >> 16);
+                break;
+            }
+            default: {
+                int x = index % width;
+                int y = index / width;
+                int alpha = img.getColorModel().hasAlpha() ? img.getRGB(x, y) & 0xFF000000 : 0xFF000000;
+                img.setRGB(x, y, alpha | (rgb & 0xFFFFFF));
+            }
+        }
+    }
+
+    /**
+     * Replaces the least significant hex digit of each color channel of a pixel. Pixels that are fully transparent
+     * get an alpha of 1 so the hidden data isn't thrown away by whatever ends up displaying the image.
+     *
+     * @param index The flat index of the pixel, y * width + x
+     * @param red   The new low nibble for red, 0 - 15
+     * @param green The new low nibble for green, 0 - 15
+     * @param blue  The new low nibble for blue, 0 - 15
+     */
+    public void writeNibbles(int index, int red, int green, int blue) {
+        if (index < dirtyFrom) dirtyFrom = index;
+        if (index > dirtyTo) dirtyTo = index;
+
+        switch (layout) {
+            case INT_RGB:
+                ints[index] = (ints[index] & 0xFFF0F0F0) | (red << 16) | (green << 8) | blue;
+                break;
+            case INT_ARGB: {
+                int argb = (ints[index] & 0xFFF0F0F0) | (red << 16) | (green << 8) | blue;
+                if ((argb >>> 24) == 0) argb |= 0x01000000;
+                ints[index] = argb;
+                break;
+            }
+            case BYTE_BGR: {
+                int off = index * 3;
+                bytes[off] = (byte) ((bytes[off] & 0xF0) | blue);
+                bytes[off + 1] = (byte) ((bytes[off + 1] & 0xF0) | green);
+                bytes[off + 2] = (byte) ((bytes[off + 2] & 0xF0) | red);
+                break;
+            }
+            case BYTE_ABGR: {
+                int off = index * 4;
+                if (bytes[off] == 0) bytes[off] = 1;
+                bytes[off + 1] = (byte) ((bytes[off + 1] & 0xF0) | blue);
+                bytes[off + 2] = (byte) ((bytes[off + 2] & 0xF0) | green);
+                bytes[off + 3] = (byte) ((bytes[off + 3] & 0xF0) | red);
+                break;
+            }
+            default: {
+                int x = index % width;
+                int y = index / width;
+                int argb = (img.getRGB(x, y) & 0xFFF0F0F0) | (red << 16) | (green << 8) | blue;
+                if (!img.getColorModel().hasAlpha()) {
+                    argb |= 0xFF000000;
+                } else if ((argb >>> 24) == 0) {
+                    argb |= 0x01000000;
+                }
+                img.setRGB(x, y, argb);
+            }
+        }
+    }
+}
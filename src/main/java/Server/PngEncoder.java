@@ -0,0 +1,287 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG writer for the images the server sends out, in place of ImageIO.write(). The image is filtered and deflated
+ * a row at a time and written out in IDAT chunks of a fixed size as soon as each one fills up, so the first bytes can
+ * be on their way to the client while the rest of the image is still being compressed.
+ * <p>
+ * The deflate level and strategy can be picked per encoder. Every row uses the Sub filter, the same as PngTemplate,
+ * which is cheap to work out and does well on photos. The Deflater and the row buffers belong to the thread, so an
+ * encoder doesn't allocate anything per image beyond a couple of small arrays. Images come out as 8 bit RGB, or RGBA
+ * if they have an alpha channel.
+ */
+public class PngEncoder {
+
+    // the size of the IDAT chunks, which is also how much compressed data is held before it is written out
+    public static final int DEFAULT_CHUNK_BYTES = 32 * 1024;
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+
+    // the Deflater and buffers of each thread, so nothing big has to be allocated per image
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final int level;
+    private final int strategy;
+    private final int chunkBytes;
+
+    /**
+     * An encoder with the default deflate level and strategy
+     */
+    public PngEncoder() {
+        this(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /**
+     * @param level    The deflate level, 0 - 9 or Deflater.DEFAULT_COMPRESSION
+     * @param strategy Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY
+     */
+    public PngEncoder(int level, int strategy) {
+        this(level, strategy, DEFAULT_CHUNK_BYTES);
+    }
+
+    /**
+     * @param level      The deflate level, 0 - 9 or Deflater.DEFAULT_COMPRESSION
+     * @param strategy   Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY
+     * @param chunkBytes The most compressed data held before it is written out as an IDAT chunk
+     */
+    public PngEncoder(int level, int strategy, int chunkBytes) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("The deflate level is 0 - 9, got " + level);
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+                && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Unknown deflate strategy " + strategy);
+        }
+        this.level = level;
+        this.strategy = strategy;
+        this.chunkBytes = Math.max(64, chunkBytes);
+    }
+
+    /**
+     * Looks up a deflate strategy by name
+     *
+     * @param name default, filtered or huffman
+     * @return The matching Deflater constant
+     */
+    public static int strategyOf(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "default":
+                return Deflater.DEFAULT_STRATEGY;
+            case "filtered":
+                return Deflater.FILTERED;
+            case "huffman":
+                return Deflater.HUFFMAN_ONLY;
+            default:
+                throw new IllegalArgumentException("The deflate strategy is default, filtered or huffman, got " + name);
+        }
+    }
+
+    /**
+     * @return A short tag for the settings of the encoder, for ETags of images it writes
+     */
+    public String tag() {
+        return "z" + level + "s" + strategy;
+    }
+
+    /**
+     * Writes an image as a PNG
+     *
+     * @param img The image to write
+     * @param out Where to write the PNG to. It's written to a chunk at a time, so it doesn't need to be buffered
+     * @throws IOException If writing to the stream fails
+     */
+    public void write(BufferedImage img, OutputStream out) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        boolean alpha = img.getColorModel().hasAlpha();
+        int bytesPerPixel = alpha ? 4 : 3;
+        int layout = PixelRaster.layoutOf(img);
+
+        byte[] ihdr = new byte[13];
+        PngTemplate.putInt(ihdr, 0, width);
+        PngTemplate.putInt(ihdr, 4, height);
+        ihdr[8] = 8;
+        ihdr[9] = (byte) (alpha ? 6 : 2);
+        out.write(SIGNATURE);
+        out.write(PngTemplate.chunk("IHDR", ihdr));
+
+        Scratch scratch = SCRATCH.get();
+        Deflater deflater = scratch.deflater(level, strategy, false);
+        byte[] row = scratch.filterBuffer(1 + width * bytesPerPixel);
+        byte[] chunk = scratch.chunkBuffer(chunkBytes);
+        int[] ints = layout == PixelRaster.INT_RGB || layout == PixelRaster.INT_ARGB
+                ? ((DataBufferInt) img.getRaster().getDataBuffer()).getData() : null;
+        byte[] bytes = layout == PixelRaster.BYTE_BGR || layout == PixelRaster.BYTE_ABGR
+                ? ((DataBufferByte) img.getRaster().getDataBuffer()).getData() : null;
+        int[] rgb = ints == null && bytes == null ? scratch.rowPixels(width) : null;
+
+        int fill = 0;
+        for (int y = 0; y < height; y++) {
+            int rowLength;
+            if (ints != null) {
+                rowLength = filterInts(ints, y * width, width, alpha, row, 0);
+            } else if (bytes != null) {
+                rowLength = filterBytes(bytes, y * width * bytesPerPixel, width, alpha, row);
+            } else {
+                img.getRGB(0, y, width, 1, rgb, 0, width);
+                rowLength = filterInts(rgb, 0, width, alpha, row, 0);
+            }
+
+            deflater.setInput(row, 0, rowLength);
+            while (!deflater.needsInput()) {
+                fill += deflater.deflate(chunk, fill, chunk.length - fill, Deflater.NO_FLUSH);
+                if (fill == chunk.length) {
+                    writeIdat(out, chunk, fill, scratch.crc);
+                    fill = 0;
+                }
+            }
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            fill += deflater.deflate(chunk, fill, chunk.length - fill, Deflater.NO_FLUSH);
+            if (fill == chunk.length) {
+                writeIdat(out, chunk, fill, scratch.crc);
+                fill = 0;
+            }
+        }
+        if (fill > 0) {
+            writeIdat(out, chunk, fill, scratch.crc);
+        }
+
+        out.write(PngTemplate.chunk("IEND", new byte[0]));
+    }
+
+    private static void writeIdat(OutputStream out, byte[] data, int length, CRC32 crc) throws IOException {
+        byte[] head = new byte[8];
+        PngTemplate.putInt(head, 0, length);
+        System.arraycopy(IDAT, 0, head, 4, 4);
+
+        crc.reset();
+        crc.update(IDAT, 0, 4);
+        crc.update(data, 0, length);
+        byte[] tail = new byte[4];
+        PngTemplate.putInt(tail, 0, (int) crc.getValue());
+
+        out.write(head);
+        out.write(data, 0, length);
+        out.write(tail);
+    }
+
+    /**
+     * Sub filters one row of packed int pixels into a scanline
+     *
+     * @param start Where in row the scanline starts
+     * @return Where in row the scanline ends
+     */
+    static int filterInts(int[] data, int offset, int width, boolean alpha, byte[] row, int start) {
+        int p = start;
+        row[p++] = 1;
+        int prev = 0;
+        for (int x = 0; x < width; x++) {
+            int argb = data[offset + x];
+            row[p++] = (byte) ((argb >> 16) - (prev >> 16));
+            row[p++] = (byte) ((argb >> 8) - (prev >> 8));
+            row[p++] = (byte) (argb - prev);
+            if (alpha) {
+                row[p++] = (byte) ((argb >>> 24) - (prev >>> 24));
+            }
+            prev = argb;
+        }
+        return p;
+    }
+
+    /**
+     * Sub filters one row of 3 byte BGR or 4 byte ABGR pixels into a scanline
+     *
+     * @return The length of the scanline
+     */
+    private static int filterBytes(byte[] data, int offset, int width, boolean alpha, byte[] row) {
+        int p = 0;
+        row[p++] = 1;
+        int pa = 0;
+        int pb = 0;
+        int pg = 0;
+        int pr = 0;
+        int i = offset;
+        for (int x = 0; x < width; x++) {
+            int a = alpha ? data[i++] : 0;
+            int b = data[i++];
+            int g = data[i++];
+            int r = data[i++];
+            row[p++] = (byte) (r - pr);
+            row[p++] = (byte) (g - pg);
+            row[p++] = (byte) (b - pb);
+            if (alpha) {
+                row[p++] = (byte) (a - pa);
+            }
+            pa = a;
+            pb = b;
+            pg = g;
+            pr = r;
+        }
+        return p;
+    }
+
+    /**
+     * @return The Deflater and buffers of the current thread, shared with PngTemplate
+     */
+    static Scratch scratch() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * One thread's Deflaters and buffers. Whatever is handed out is only good until the same thread asks again.
+     */
+    static final class Scratch {
+        private final Deflater zlib = new Deflater();
+        private final Deflater raw = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private byte[] filter = new byte[0];
+        private byte[] chunk = new byte[0];
+        private int[] pixels = new int[0];
+        final CRC32 crc = new CRC32();
+
+        /**
+         * @param nowrap True for a raw deflate stream, false for one with a zlib header and checksum
+         * @return The thread's Deflater, reset and set up for a new stream
+         */
+        Deflater deflater(int level, int strategy, boolean nowrap) {
+            Deflater deflater = nowrap ? raw : zlib;
+            deflater.reset();
+            deflater.setLevel(level);
+            deflater.setStrategy(strategy);
+            return deflater;
+        }
+
+        byte[] filterBuffer(int size) {
+            if (filter.length < size) {
+                filter = new byte[size];
+            }
+            return filter;
+        }
+
+        byte[] chunkBuffer(int size) {
+            if (chunk.length != size) {
+                chunk = new byte[size];
+            }
+            return chunk;
+        }
+
+        int[] rowPixels(int size) {
+            if (pixels.length < size) {
+                pixels = new int[size];
+            }
+            return pixels;
+        }
+    }
+}
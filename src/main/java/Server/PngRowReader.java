@@ -0,0 +1,305 @@
+package Server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a PNG one row at a time, for the TiledDecoder. Only the row being read and the one before it (which the
+ * filters refer back to) are ever held, so a PNG of any size can be read with a few kilobytes of memory.
+ * <p>
+ * Only the layouts where every pixel maps to an RGB value without any color conversion are read this way: 8 bit RGB,
+ * 8 bit RGBA and palettes, all without interlacing or an embedded color profile. For those the values are exactly the
+ * ones getRGB() gives for the image ImageIO reads. open() turns everything else down so the caller can fall back to
+ * ImageIO.
+ */
+class PngRowReader {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int IDAT = 0x49444154;
+    private static final int ICCP = 0x69434350;
+
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_RGBA = 6;
+
+    private final InputStream pixels;
+    private final Inflater inflater = new Inflater();
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int colorType;
+    private final int[] palette;
+
+    // bytes per complete pixel, at least 1, which is how far back the filters look
+    private final int bpp;
+    private byte[] previous;
+    private byte[] current;
+    private int row;
+
+    private PngRowReader(DataInputStream in, int firstLength, int width, int height, int depth, int colorType,
+                         int[] palette) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.colorType = colorType;
+        this.palette = palette;
+
+        int channels = colorType == COLOR_RGB ? 3 : colorType == COLOR_RGBA ? 4 : 1;
+        int rowBytes = (int) (((long) width * channels * depth + 7) / 8);
+        bpp = Math.max(1, channels * depth / 8);
+        previous = new byte[rowBytes];
+        current = new byte[rowBytes];
+        pixels = new InflaterInputStream(new IdatStream(in, firstLength), inflater, 64 * 1024);
+    }
+
+    /**
+     * Reads the chunks in front of the image data
+     *
+     * @param stream The PNG file, positioned at its very start. Nothing is buffered, so hand in a buffered stream
+     * @return A reader positioned at the first row, or null if the stream isn't a PNG this class can read
+     * @throws IOException If the stream can't be read or is a broken PNG
+     */
+    static PngRowReader open(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            if (in.readLong() != SIGNATURE) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+
+        int width = 0;
+        int height = 0;
+        int depth = 0;
+        int colorType = -1;
+        int interlace = 0;
+        int[] palette = null;
+        boolean profile = false;
+
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (length < 0) {
+                throw new IOException("Broken PNG chunk");
+            }
+
+            if (type == IDAT) {
+                if (width <= 0 || height <= 0) {
+                    throw new IOException("The PNG has no IHDR");
+                }
+                boolean supported = interlace == 0 && !profile
+                        && (depth == 8 && (colorType == COLOR_RGB || colorType == COLOR_RGBA)
+                        || colorType == COLOR_PALETTE && palette != null && depth <= 8);
+                return supported ? new PngRowReader(in, length, width, height, depth, colorType, palette) : null;
+            }
+
+            if (type == IHDR) {
+                width = in.readInt();
+                height = in.readInt();
+                depth = in.readUnsignedByte();
+                colorType = in.readUnsignedByte();
+                in.readUnsignedByte();
+                in.readUnsignedByte();
+                interlace = in.readUnsignedByte();
+                skipFully(in, length - 13);
+            } else if (type == PLTE) {
+                palette = new int[length / 3];
+                for (int i = 0; i < palette.length; i++) {
+                    palette[i] = 0xFF000000 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8
+                            | in.readUnsignedByte();
+                }
+                skipFully(in, length - palette.length * 3);
+            } else {
+                // an embedded profile would make ImageIO convert the colors, so those images aren't streamed
+                profile |= type == ICCP;
+                skipFully(in, length);
+            }
+
+            // the CRC
+            skipFully(in, 4);
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Reads the next row of the image
+     *
+     * @param rgb Receives the first width pixels of the row in the default RGB color model. The alpha of palette
+     *            images is always opaque, nothing that reads the rows looks at it
+     * @return False if every row has already been read
+     * @throws IOException If the image data can't be read or is broken
+     */
+    boolean nextRow(int[] rgb) throws IOException {
+        if (row == height) {
+            return false;
+        }
+
+        int filter = pixels.read();
+        if (filter < 0) {
+            throw new EOFException("The PNG ended after " + row + " of " + height + " rows");
+        }
+        readFully(current);
+        unfilter(filter);
+
+        byte[] line = current;
+        if (colorType == COLOR_RGB) {
+            for (int x = 0, i = 0; x < width; x++, i += 3) {
+                rgb[x] = 0xFF000000 | (line[i] & 0xFF) << 16 | (line[i + 1] & 0xFF) << 8 | (line[i + 2] & 0xFF);
+            }
+        } else if (colorType == COLOR_RGBA) {
+            for (int x = 0, i = 0; x < width; x++, i += 4) {
+                rgb[x] = (line[i + 3] & 0xFF) << 24 | (line[i] & 0xFF) << 16 | (line[i + 1] & 0xFF) << 8
+                        | (line[i + 2] & 0xFF);
+            }
+        } else {
+            int perByte = 8 / depth;
+            int mask = (1 << depth) - 1;
+            for (int x = 0; x < width; x++) {
+                int shift = 8 - depth * (x % perByte + 1);
+                int entry = (line[x / perByte] >> shift) & mask;
+                rgb[x] = entry < palette.length ? palette[entry] : 0xFF000000;
+            }
+        }
+
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        row++;
+        return true;
+    }
+
+    /**
+     * Undoes the filter of the current row, in place
+     */
+    private void unfilter(int filter) throws IOException {
+        byte[] cur = current;
+        byte[] prev = previous;
+        int n = cur.length;
+
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < n; i++) {
+                    cur[i] += cur[i - bpp];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    cur[i] += prev[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < n; i++) {
+                    int left = i >= bpp ? cur[i - bpp] & 0xFF : 0;
+                    cur[i] += (left + (prev[i] & 0xFF)) >>> 1;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < n; i++) {
+                    int a = i >= bpp ? cur[i - bpp] & 0xFF : 0;
+                    int b = prev[i] & 0xFF;
+                    int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    cur[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter " + filter + " on row " + row);
+        }
+    }
+
+    private void readFully(byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = pixels.read(buf, off, buf.length - off);
+            if (n < 0) {
+                throw new EOFException("The PNG ended after " + row + " of " + height + " rows");
+            }
+            off += n;
+        }
+    }
+
+    /**
+     * Lets go of the native memory held by the Inflater. The underlying stream is left open
+     */
+    void close() {
+        inflater.end();
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("The PNG ended in the middle of a chunk");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * The data of every IDAT chunk strung together, which is the zlib stream holding the rows
+     */
+    private static class IdatStream extends InputStream {
+        private final DataInputStream in;
+        private int remaining;
+        private boolean done;
+
+        IdatStream(DataInputStream in, int firstLength) {
+            this.in = in;
+            this.remaining = firstLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (remaining == 0) {
+                if (done) {
+                    return -1;
+                }
+
+                // move on to the next chunk, the image data ends at the first one that isn't an IDAT
+                skipFully(in, 4);
+                int length = in.readInt();
+                if (in.readInt() != IDAT) {
+                    done = true;
+                    return -1;
+                }
+                remaining = length;
+            }
+
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("The PNG ended in the middle of the image data");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+}
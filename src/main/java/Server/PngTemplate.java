@@ -0,0 +1,365 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A pre-compressed PNG of a carrier image. hideIP() only touches a couple dozen pixels, so compressing the whole image
+ * again for every request is mostly wasted work. Instead the image is cut into blocks of rows and every block is
+ * compressed once, on its own, into its own IDAT chunk. When a modified copy of the carrier is written out only the
+ * blocks holding the changed rows are compressed again, everything else is copied straight from the template.
+ * <p>
+ * All of the IDAT chunks of a PNG make up one zlib stream. Every block is deflated with a fresh Deflater and ends
+ * with a sync flush, so the blocks don't refer to each other and can simply be put back to back. The zlib header
+ * goes in the first IDAT chunk and the last one holds an empty final deflate block and the Adler-32 checksum of the
+ * whole image, which is pieced together from the checksums of the blocks.
+ * <p>
+ * Every row uses the Sub filter, which only looks at the pixels to its left, so changing one row never changes how
+ * another row is filtered. Blocks are filtered and deflated with the thread's buffers and Deflater, see PngEncoder.
+ */
+public class PngTemplate {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    // zlib header for a deflate stream with a 32K window
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9C};
+
+    // a final, empty deflate block using the fixed Huffman codes
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    // blocks hold about one deflate window worth of raw data
+    private static final int BLOCK_BYTES = 32 * 1024;
+
+    private static final int ADLER_BASE = 65521;
+
+    private final int width;
+    private final int height;
+    private final int type;
+    private final int bytesPerPixel;
+    private final int level;
+    private final int blockRows;
+    private final int[] pixels;
+    private final byte[] head;
+    private final Block[] blocks;
+    private final byte[] iend;
+
+    /**
+     * Compresses every block of the image at the default compression level
+     *
+     * @param master A packed int image, see PixelRaster.toPackedInt(). It must not be changed afterwards
+     */
+    public PngTemplate(BufferedImage master) {
+        this(master, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Compresses every block of the image
+     *
+     * @param master A packed int image, see PixelRaster.toPackedInt(). It must not be changed afterwards
+     * @param level  The deflate level, 0 - 9
+     */
+    public PngTemplate(BufferedImage master, int level) {
+        width = master.getWidth();
+        height = master.getHeight();
+        type = master.getType();
+        int layout = PixelRaster.layoutOf(master);
+        if (layout != PixelRaster.INT_RGB && layout != PixelRaster.INT_ARGB) {
+            throw new IllegalArgumentException("PngTemplate needs a packed int image, see PixelRaster.toPackedInt()");
+        }
+        bytesPerPixel = type == BufferedImage.TYPE_INT_ARGB ? 4 : 3;
+        this.level = level;
+        blockRows = Math.max(1, BLOCK_BYTES / (1 + width * bytesPerPixel));
+        pixels = dataOf(master);
+
+        // signature, header and an IDAT chunk holding only the zlib header
+        ByteArrayOutputStream headOut = new ByteArrayOutputStream();
+        headOut.write(SIGNATURE, 0, SIGNATURE.length);
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8;
+        ihdr[9] = (byte) (bytesPerPixel == 4 ? 6 : 2);
+        byte[] chunk = chunk("IHDR", ihdr);
+        headOut.write(chunk, 0, chunk.length);
+        chunk = chunk("IDAT", ZLIB_HEADER);
+        headOut.write(chunk, 0, chunk.length);
+        head = headOut.toByteArray();
+
+        blocks = new Block[(height + blockRows - 1) / blockRows];
+        for (int b = 0; b < blocks.length; b++) {
+            blocks[b] = compress(pixels, b * blockRows);
+        }
+
+        iend = chunk("IEND", new byte[0]);
+    }
+
+    /**
+     * Writes a PNG of a copy of the master image. Blocks that don't overlap the dirty rows are taken from the template
+     * as is, the others are compared with the master and compressed again if anything in them changed.
+     *
+     * @param out           Where to write the PNG to
+     * @param img           A copy of the master image, with the same size and type
+     * @param firstDirtyRow The first row that might differ from the master, or -1 if none do
+     * @param lastDirtyRow  The last row that might differ from the master, or -1 if none do
+     * @throws IOException If writing to the stream fails
+     */
+    public void write(OutputStream out, BufferedImage img, int firstDirtyRow, int lastDirtyRow) throws IOException {
+        if (img.getWidth() != width || img.getHeight() != height || img.getType() != type) {
+            throw new IllegalArgumentException("The image doesn't match the template");
+        }
+        int[] data = dataOf(img);
+
+        out.write(head);
+
+        long adler = 1;
+        for (int b = 0; b < blocks.length; b++) {
+            int firstRow = b * blockRows;
+            int lastRow = Math.min(firstRow + blockRows, height) - 1;
+
+            Block block = blocks[b];
+            if (lastRow >= firstDirtyRow && firstRow <= lastDirtyRow && data != pixels
+                    && !sameRows(data, firstRow, lastRow)) {
+                block = compress(data, firstRow);
+            }
+
+            adler = writeBlock(out, block, adler);
+        }
+
+        finish(out, adler);
+    }
+
+    /**
+     * Writes a PNG of the master image with a range of template blocks swapped out for other blocks. The replacement
+     * blocks must cover exactly the same rows as the blocks they replace, in order.
+     *
+     * @param out         Where to write the PNG to
+     * @param firstBlock  The first template block to leave out
+     * @param lastBlock   The last template block to leave out
+     * @param replacement The blocks to write in their place, nulls are skipped
+     * @throws IOException If writing to the stream fails
+     */
+    void write(OutputStream out, int firstBlock, int lastBlock, Block... replacement) throws IOException {
+        out.write(head);
+
+        long adler = 1;
+        for (int b = 0; b < firstBlock; b++) {
+            adler = writeBlock(out, blocks[b], adler);
+        }
+        for (Block block : replacement) {
+            if (block != null) {
+                adler = writeBlock(out, block, adler);
+            }
+        }
+        for (int b = lastBlock + 1; b < blocks.length; b++) {
+            adler = writeBlock(out, blocks[b], adler);
+        }
+
+        finish(out, adler);
+    }
+
+    private static long writeBlock(OutputStream out, Block block, long adler) throws IOException {
+        out.write(block.chunk);
+        return adler32Combine(adler, block.adler, block.length);
+    }
+
+    /**
+     * Ends the zlib stream with the checksum of all of the blocks and closes off the PNG
+     */
+    private void finish(OutputStream out, long adler) throws IOException {
+        byte[] tail = new byte[FINAL_BLOCK.length + 4];
+        System.arraycopy(FINAL_BLOCK, 0, tail, 0, FINAL_BLOCK.length);
+        putInt(tail, FINAL_BLOCK.length, (int) adler);
+        out.write(chunk("IDAT", tail));
+        out.write(iend);
+    }
+
+    /**
+     * @return The number of rows in each template block, the last block may have fewer
+     */
+    int blockRows() {
+        return blockRows;
+    }
+
+    /**
+     * @return Roughly how much memory the template holds on to, not counting the master image
+     */
+    public long compressedBytes() {
+        long total = head.length + iend.length;
+        for (Block block : blocks) {
+            total += block.chunk.length;
+        }
+        return total;
+    }
+
+    /**
+     * Checks if a range of rows of a copy is still identical to the master
+     */
+    private boolean sameRows(int[] data, int firstRow, int lastRow) {
+        int end = (lastRow + 1) * width;
+        for (int i = firstRow * width; i < end; i++) {
+            if (data[i] != pixels[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Filters and deflates the template block of rows starting at firstRow into an IDAT chunk
+     */
+    private Block compress(int[] data, int firstRow) {
+        return compress(data, firstRow, Math.min(blockRows, height - firstRow));
+    }
+
+    /**
+     * Filters and deflates any number of rows into an IDAT chunk
+     *
+     * @param data     Packed int pixels, the same width and type as the master
+     * @param firstRow The row of data to start at
+     * @param rows     The number of rows to compress
+     * @return The compressed rows, ready to go between two other blocks
+     */
+    Block compress(int[] data, int firstRow, int rows) {
+        PngEncoder.Scratch scratch = PngEncoder.scratch();
+        byte[] filtered = scratch.filterBuffer(rows * (1 + width * bytesPerPixel));
+        int length = filter(data, firstRow, rows, filtered);
+
+        Adler32 adler = new Adler32();
+        adler.update(filtered, 0, length);
+
+        // no finish(), the block must not be marked as the last one of the stream
+        Deflater deflater = scratch.deflater(level, Deflater.DEFAULT_STRATEGY, true);
+        deflater.setInput(filtered, 0, length);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buf = scratch.chunkBuffer(PngEncoder.DEFAULT_CHUNK_BYTES);
+        int n;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            compressed.write(buf, 0, n);
+        } while (n == buf.length);
+
+        return new Block(chunk("IDAT", compressed.toByteArray()), (int) adler.getValue(), length);
+    }
+
+    /**
+     * Filters rows into an IDAT chunk made of stored deflate blocks, which aren't compressed at all. That's a lot
+     * bigger than compress() but costs next to nothing, for the few rows that change on every request.
+     *
+     * @param data     Packed int pixels, the same width and type as the master
+     * @param firstRow The row of data to start at
+     * @param rows     The number of rows to store
+     * @return The stored rows, ready to go between two other blocks
+     */
+    Block stored(int[] data, int firstRow, int rows) {
+        byte[] filtered = PngEncoder.scratch().filterBuffer(rows * (1 + width * bytesPerPixel));
+        int length = filter(data, firstRow, rows, filtered);
+
+        Adler32 adler = new Adler32();
+        adler.update(filtered, 0, length);
+
+        // a stored block holds at most 65535 bytes, each one starts with its length and the inverse of it
+        int pieces = Math.max(1, (length + 65534) / 65535);
+        byte[] deflated = new byte[length + 5 * pieces];
+        int p = 0;
+        for (int from = 0; from < length || p == 0; from += 65535) {
+            int len = Math.min(65535, length - from);
+            deflated[p++] = 0;
+            deflated[p++] = (byte) len;
+            deflated[p++] = (byte) (len >>> 8);
+            deflated[p++] = (byte) ~len;
+            deflated[p++] = (byte) (~len >>> 8);
+            System.arraycopy(filtered, from, deflated, p, len);
+            p += len;
+        }
+
+        return new Block(chunk("IDAT", deflated), (int) adler.getValue(), length);
+    }
+
+    /**
+     * Turns rows of pixels into PNG scanlines, every one of them using the Sub filter
+     *
+     * @return The number of bytes of filtered that were filled
+     */
+    private int filter(int[] data, int firstRow, int rows, byte[] filtered) {
+        int p = 0;
+        for (int y = firstRow; y < firstRow + rows; y++) {
+            p = PngEncoder.filterInts(data, y * width, width, bytesPerPixel == 4, filtered, p);
+        }
+        return p;
+    }
+
+    /**
+     * Works out the Adler-32 checksum of two pieces of data put together from the checksums of each piece, the same
+     * way zlib's adler32_combine() does
+     *
+     * @param adler1 The checksum of the first piece
+     * @param adler2 The checksum of the second piece
+     * @param len2   The length of the second piece
+     * @return The checksum of both pieces
+     */
+    static long adler32Combine(long adler1, long adler2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Builds a complete PNG chunk, length, type, data and CRC
+     *
+     * @param type The four letter chunk type
+     * @param data The contents of the chunk
+     * @return The chunk ready to be written out
+     */
+    static byte[] chunk(String type, byte[] data) {
+        byte[] chunk = new byte[12 + data.length];
+        putInt(chunk, 0, data.length);
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(typeBytes, 0, chunk, 4, 4);
+        System.arraycopy(data, 0, chunk, 8, data.length);
+
+        CRC32 crc = new CRC32();
+        crc.update(chunk, 4, 4 + data.length);
+        putInt(chunk, 8 + data.length, (int) crc.getValue());
+        return chunk;
+    }
+
+    static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    private static int[] dataOf(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * One compressed block of rows, ready to be written out as an IDAT chunk
+     */
+    static class Block {
+        final byte[] chunk;
+        final int adler;
+        final int length;
+
+        Block(byte[] chunk, int adler, int length) {
+            this.chunk = chunk;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+}
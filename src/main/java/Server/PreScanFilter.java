@@ -0,0 +1,60 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cheap first pass that lets the decoder skip images without a hidden IP. The header is five pixels of 11 followed
+ * by five pixels of 12, and any five pixels in a row include exactly one whose flat index is a multiple of five. So if
+ * there is a header starting at s, there is a multiple of five k between s and s + 4 where pixel k holds 11 and pixel
+ * k + 5 holds 12.
+ * <p>
+ * The filter only looks at every fifth pixel for those candidates. Images that don't have any are rejected after
+ * reading a fifth of their pixels, and for the ones that do, only the few header positions next to each candidate
+ * are checked with the full matcher instead of scanning the whole image.
+ */
+public class PreScanFilter {
+
+    // Only pixels whose flat index is a multiple of this are looked at
+    static final int STRIDE = 5;
+
+    /**
+     * Searches part of the raster for the header, checking only the header positions next to each candidate. The
+     * result is always the same as Steganography.findSecret() over the same range.
+     *
+     * @param raster     The pixel raster of the image to inspect
+     * @param from       The flat index of the first header position to consider
+     * @param to         The flat index one past the last header position to consider
+     * @param candidates Counts the candidates that had to be checked, may be null
+     * @return The flat index of the first pixel after the header, or -1 if there is no header in the range
+     */
+    static int findSecret(PixelRaster raster, int from, int to, AtomicInteger candidates) {
+        int count = raster.getPixelCount();
+        int lastStart = Math.min(to - 1, count - Steganography.HEADER_LENGTH - Steganography.IP_LENGTH);
+        if (lastStart < from) {
+            return -1;
+        }
+
+        // the candidate of a header is at most four pixels past its start
+        int k = (from + STRIDE - 1) / STRIDE * STRIDE;
+        int end = lastStart + STRIDE;
+
+        while (k < end) {
+            k = raster.indexOfSum(11, k, end, STRIDE);
+            if (k < 0) {
+                return -1;
+            }
+
+            if (raster.nibbleSum(k + STRIDE) == 12) {
+                if (candidates != null) {
+                    candidates.incrementAndGet();
+                }
+                int index = Steganography.findSecret(raster, Math.max(from, k - STRIDE + 1), Math.min(k, lastStart) + 1);
+                if (index >= 0) {
+                    return index;
+                }
+            }
+            k += STRIDE;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,264 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes images in the QOI format ("Quite OK Image", qoiformat.org), a lossless format built to be encoded in a
+ * single cheap pass. There is no entropy coder, each pixel becomes one of a handful of byte codes: a run of the pixel
+ * before it, a reference into a 64 entry table of recently seen colors, a small difference from the pixel before it,
+ * or the raw color. That makes it many times cheaper to write than a deflated PNG, at the price of files that are
+ * usually somewhat bigger, which is a good trade for the clients of /stega that can read it.
+ * <p>
+ * write() encodes the whole image, QoiTemplate re-encodes only the rows of a carrier that changed. Images come out
+ * with 3 channels, or 4 if they have an alpha channel, and are marked as sRGB. The output buffer and the color table
+ * belong to the thread, so nothing is allocated per image. QoiRowReader reads the files back.
+ */
+public class QoiEncoder {
+
+    public static final String CONTENT_TYPE = "image/qoi";
+
+    static final int MAGIC = 0x716F6966;
+
+    static final int OP_INDEX = 0x00;
+    static final int OP_DIFF = 0x40;
+    static final int OP_LUMA = 0x80;
+    static final int OP_RUN = 0xC0;
+    static final int OP_RGB = 0xFE;
+    static final int OP_RGBA = 0xFF;
+
+    // the longest run one OP_RUN can hold, 63 and 64 would clash with OP_RGB and OP_RGBA
+    static final int MAX_RUN = 62;
+
+    // seven zero bytes and a one mark the end of the stream
+    static final byte[] END = {0, 0, 0, 0, 0, 0, 0, 1};
+
+    // the output buffer and color table of each thread
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Writes the image as a QOI file
+     *
+     * @param img The image to write, packed int images are read straight from their pixel arrays
+     * @param out Where the file goes
+     * @throws IOException If writing to the stream fails
+     */
+    public static void write(BufferedImage img, OutputStream out) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        boolean alpha = img.getColorModel().hasAlpha();
+
+        Scratch scratch = SCRATCH.get();
+        scratch.start(out);
+        scratch.pos = header(scratch.buf, width, height, alpha);
+
+        // the packed int layouts are read in place, anything else a row at a time through getRGB()
+        int layout = PixelRaster.layoutOf(img);
+        if (layout == PixelRaster.INT_RGB || layout == PixelRaster.INT_ARGB) {
+            int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            scratch.encode(pixels, 0, width * height, alpha);
+        } else {
+            int[] row = scratch.row(width);
+            for (int y = 0; y < height; y++) {
+                scratch.encode(img.getRGB(0, y, width, 1, row, 0, width), 0, width, alpha);
+            }
+        }
+        scratch.flush();
+        out.write(END);
+    }
+
+    /**
+     * Puts the 14 byte file header at the start of buf
+     *
+     * @return The length of the header
+     */
+    static int header(byte[] buf, int width, int height, boolean alpha) {
+        int pos = putInt(buf, 0, MAGIC);
+        pos = putInt(buf, pos, width);
+        pos = putInt(buf, pos, height);
+        buf[pos++] = (byte) (alpha ? 4 : 3);
+        buf[pos++] = 0;
+        return pos;
+    }
+
+    /**
+     * @return The calling thread's output buffer and encoder state, shared with QoiTemplate
+     */
+    static Scratch scratch() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * Where a color goes in the table of recently seen colors
+     */
+    static int hash(int argb) {
+        return (((argb >> 16) & 0xFF) * 3 + ((argb >> 8) & 0xFF) * 5 + (argb & 0xFF) * 7 + (argb >>> 24) * 11) & 63;
+    }
+
+    private static int putInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >>> 24);
+        buf[pos + 1] = (byte) (value >>> 16);
+        buf[pos + 2] = (byte) (value >>> 8);
+        buf[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    /**
+     * The encoder of one thread: its output buffer, the color table and the pixel before the next one, so an image can
+     * be encoded in pieces
+     */
+    static final class Scratch {
+        final byte[] buf = new byte[64 * 1024];
+        final int[] index = new int[64];
+        private int[] row = new int[0];
+
+        private OutputStream out;
+        int pos;
+        private int prev;
+        private int run;
+
+        /**
+         * Starts a new stream, from the state the QOI spec starts every file in
+         */
+        void start(OutputStream out) {
+            this.out = out;
+            pos = 0;
+            run = 0;
+            prev = 0xFF000000;
+            Arrays.fill(index, 0);
+        }
+
+        /**
+         * Makes the bytes of the next pixels independent of everything encoded so far, whatever state the decoder is
+         * in when it gets to them: the run is ended, the color table can't be hit and the next pixel is written out in
+         * full. The color table entries are filled with colors that hash to a different entry, so they never match.
+         */
+        void cut() throws IOException {
+            endRun();
+            for (int i = 0; i < index.length; i++) {
+                index[i] = i == 0 ? 0xFF000000 : 0;
+            }
+            run = -1;
+        }
+
+        /**
+         * Encodes a range of ARGB pixels onto the end of the stream
+         *
+         * @param pixels The pixels
+         * @param from   The index of the first one
+         * @param to     One past the index of the last one
+         * @param alpha  False to take every pixel as opaque
+         */
+        void encode(int[] pixels, int from, int to, boolean alpha) throws IOException {
+            byte[] buf = this.buf;
+            int[] index = this.index;
+            int pos = this.pos;
+            int prev = this.prev;
+            int run = this.run;
+
+            // right after a cut the first pixel can't refer to the one before it
+            if (run < 0 && from < to) {
+                prev = ~(alpha ? pixels[from] : pixels[from] | 0xFF000000);
+                run = 0;
+            }
+
+            for (int x = from; x < to; x++) {
+                int px = alpha ? pixels[x] : pixels[x] | 0xFF000000;
+
+                if (px == prev) {
+                    if (++run == MAX_RUN) {
+                        if (pos == buf.length) {
+                            out.write(buf, 0, pos);
+                            pos = 0;
+                        }
+                        buf[pos++] = (byte) (OP_RUN | (run - 1));
+                        run = 0;
+                    }
+                    continue;
+                }
+
+                // room for a run and the biggest pixel code
+                if (pos > buf.length - 6) {
+                    out.write(buf, 0, pos);
+                    pos = 0;
+                }
+                if (run > 0) {
+                    buf[pos++] = (byte) (OP_RUN | (run - 1));
+                    run = 0;
+                }
+
+                int hash = hash(px);
+                if (index[hash] == px) {
+                    buf[pos++] = (byte) (OP_INDEX | hash);
+                } else {
+                    index[hash] = px;
+                    int r = (px >> 16) & 0xFF;
+                    int g = (px >> 8) & 0xFF;
+                    int b = px & 0xFF;
+
+                    if ((px ^ prev) >>> 24 == 0) {
+                        // the differences wrap around like bytes do
+                        int dr = (byte) (r - ((prev >> 16) & 0xFF));
+                        int dg = (byte) (g - ((prev >> 8) & 0xFF));
+                        int db = (byte) (b - (prev & 0xFF));
+                        int drg = dr - dg;
+                        int dbg = db - dg;
+
+                        if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                            buf[pos++] = (byte) (OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                        } else if (dg >= -32 && dg <= 31 && drg >= -8 && drg <= 7 && dbg >= -8 && dbg <= 7) {
+                            buf[pos++] = (byte) (OP_LUMA | (dg + 32));
+                            buf[pos++] = (byte) ((drg + 8) << 4 | (dbg + 8));
+                        } else {
+                            buf[pos++] = (byte) OP_RGB;
+                            buf[pos++] = (byte) r;
+                            buf[pos++] = (byte) g;
+                            buf[pos++] = (byte) b;
+                        }
+                    } else {
+                        buf[pos++] = (byte) OP_RGBA;
+                        buf[pos++] = (byte) r;
+                        buf[pos++] = (byte) g;
+                        buf[pos++] = (byte) b;
+                        buf[pos++] = (byte) (px >>> 24);
+                    }
+                }
+                prev = px;
+            }
+
+            this.pos = pos;
+            this.prev = prev;
+            this.run = run;
+        }
+
+        /**
+         * Ends the run and writes out everything encoded so far
+         */
+        void flush() throws IOException {
+            endRun();
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        private void endRun() throws IOException {
+            if (run > 0) {
+                if (pos == buf.length) {
+                    out.write(buf, 0, pos);
+                    pos = 0;
+                }
+                buf[pos++] = (byte) (OP_RUN | (run - 1));
+            }
+            run = 0;
+        }
+
+        private int[] row(int width) {
+            if (row.length < width) {
+                row = new int[width];
+            }
+            return row;
+        }
+    }
+}
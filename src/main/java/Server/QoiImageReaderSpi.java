@@ -0,0 +1,225 @@
+package Server;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Plugs QoiRowReader into ImageIO, so ImageIO.read() and everything built on it (the decoders, the DecodeService and
+ * the CarrierCache) reads QOI files like any other image. It is registered in
+ * META-INF/services/javax.imageio.spi.ImageReaderSpi and picked up by ImageIO on its own.
+ * <p>
+ * Images come out as TYPE_INT_RGB, or TYPE_INT_ARGB for 4 channel files. Source regions and subsampling work, but
+ * since QOI can only be decoded front to back, going back to an earlier row starts over from the top of the file.
+ */
+public class QoiImageReaderSpi extends ImageReaderSpi {
+
+    public QoiImageReaderSpi() {
+        super("Steganography", "1.0", new String[]{"qoi", "QOI"}, new String[]{"qoi"},
+                new String[]{QoiEncoder.CONTENT_TYPE}, QoiImageReader.class.getName(),
+                new Class<?>[]{ImageInputStream.class}, null, false, null, null, null, null, false, null, null, null,
+                null);
+    }
+
+    @Override
+    public boolean canDecodeInput(Object source) throws IOException {
+        if (!(source instanceof ImageInputStream)) {
+            return false;
+        }
+        ImageInputStream in = (ImageInputStream) source;
+        byte[] magic = new byte[4];
+        in.mark();
+        try {
+            in.readFully(magic);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            in.reset();
+        }
+        return QoiRowReader.isQoi(magic);
+    }
+
+    @Override
+    public ImageReader createReaderInstance(Object extension) {
+        return new QoiImageReader(this);
+    }
+
+    @Override
+    public String getDescription(Locale locale) {
+        return "QOI image reader";
+    }
+
+    /**
+     * The reader ImageIO hands out, one per image being read
+     */
+    static class QoiImageReader extends ImageReader {
+
+        // where the file starts in the stream, to start over from
+        private long start;
+        private QoiRowReader rows;
+
+        // the next row the QoiRowReader will hand out
+        private int row;
+
+        QoiImageReader(ImageReaderSpi spi) {
+            super(spi);
+        }
+
+        @Override
+        public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata) {
+            super.setInput(input, seekForwardOnly, ignoreMetadata);
+            rows = null;
+            row = 0;
+            if (input != null) {
+                try {
+                    start = ((ImageInputStream) input).getStreamPosition();
+                } catch (IOException e) {
+                    start = 0;
+                }
+            }
+        }
+
+        @Override
+        public int getNumImages(boolean allowSearch) {
+            return 1;
+        }
+
+        @Override
+        public int getWidth(int imageIndex) throws IOException {
+            return header(imageIndex).getWidth();
+        }
+
+        @Override
+        public int getHeight(int imageIndex) throws IOException {
+            return header(imageIndex).getHeight();
+        }
+
+        @Override
+        public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) throws IOException {
+            int type = header(imageIndex).hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            return Collections.singletonList(ImageTypeSpecifier.createFromBufferedImageType(type)).iterator();
+        }
+
+        @Override
+        public IIOMetadata getStreamMetadata() {
+            return null;
+        }
+
+        @Override
+        public IIOMetadata getImageMetadata(int imageIndex) {
+            return null;
+        }
+
+        @Override
+        public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
+            QoiRowReader reader = header(imageIndex);
+            int width = reader.getWidth();
+            int height = reader.getHeight();
+            if (param == null) {
+                param = getDefaultReadParam();
+            }
+
+            BufferedImage dest = getDestination(param, getImageTypes(imageIndex), width, height);
+            Rectangle source = new Rectangle();
+            Rectangle target = new Rectangle();
+            computeRegions(param, width, height, dest, source, target);
+            int stepX = param.getSourceXSubsampling();
+            int stepY = param.getSourceYSubsampling();
+
+            // rows already handed out can only be read again from the top
+            if (source.y < row) {
+                rows = null;
+                row = 0;
+                reader = header(imageIndex);
+            }
+
+            processImageStarted(imageIndex);
+            int[] rgb = new int[width];
+            int[] out = stepX == 1 ? rgb : new int[target.width];
+            for (int y = 0; y < target.height; y++) {
+                int wanted = source.y + y * stepY;
+                while (row <= wanted) {
+                    if (!reader.nextRow(rgb)) {
+                        throw new IIOException("The QOI has fewer rows than its header says");
+                    }
+                    row++;
+                }
+
+                if (stepX == 1) {
+                    dest.setRGB(target.x, target.y + y, target.width, 1, rgb, source.x, width);
+                } else {
+                    for (int x = 0; x < target.width; x++) {
+                        out[x] = rgb[source.x + x * stepX];
+                    }
+                    dest.setRGB(target.x, target.y + y, target.width, 1, out, 0, target.width);
+                }
+
+                if (abortRequested()) {
+                    processReadAborted();
+                    return dest;
+                }
+            }
+            processImageComplete();
+            return dest;
+        }
+
+        @Override
+        public void dispose() {
+            rows = null;
+        }
+
+        /**
+         * Reads the header if it hasn't been yet, which leaves the QoiRowReader on the first row
+         */
+        private QoiRowReader header(int imageIndex) throws IOException {
+            if (imageIndex != 0) {
+                throw new IndexOutOfBoundsException("A QOI only holds image 0, asked for " + imageIndex);
+            }
+            if (rows == null) {
+                ImageInputStream in = (ImageInputStream) getInput();
+                if (in == null) {
+                    throw new IllegalStateException("No input has been set");
+                }
+                in.seek(start);
+                rows = QoiRowReader.open(new StreamAdapter(in));
+                row = 0;
+                if (rows == null) {
+                    throw new IIOException("Not a QOI file");
+                }
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * An ImageInputStream as an InputStream, without closing the stream underneath
+     */
+    private static final class StreamAdapter extends InputStream {
+        private final ImageInputStream in;
+
+        StreamAdapter(ImageInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package Server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static Server.QoiEncoder.OP_DIFF;
+import static Server.QoiEncoder.OP_INDEX;
+import static Server.QoiEncoder.OP_LUMA;
+import static Server.QoiEncoder.OP_RGB;
+import static Server.QoiEncoder.OP_RGBA;
+
+/**
+ * Reads a QOI file one row at a time, the reading half of QoiEncoder. QOI is decoded strictly front to back, so like
+ * PngRowReader only a row's worth of pixels and a small buffer of the file are held at once, whatever the size of the
+ * image. The TiledDecoder reads QOIs with it directly, and QoiImageReaderSpi hands it to ImageIO so everything that
+ * reads images through ImageIO.read() can read QOIs as well.
+ * <p>
+ * Pixels come out as ARGB ints, the same values getRGB() gives, with an alpha of 255 for 3 channel files.
+ */
+class QoiRowReader {
+
+    static final int HEADER_BYTES = 14;
+
+    private final InputStream in;
+    private final byte[] buf = new byte[16 * 1024];
+    private int pos;
+    private int limit;
+
+    private final int width;
+    private final int height;
+    private final int channels;
+
+    private final int[] index = new int[64];
+    private int px = 0xFF000000;
+    private int run;
+    private int row;
+
+    private QoiRowReader(InputStream in, int width, int height, int channels) {
+        this.in = in;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+    }
+
+    /**
+     * Reads the header
+     *
+     * @param in The QOI file, positioned at its very start. It is read in blocks, so it doesn't need to be buffered
+     * @return A reader positioned at the first row, or null if the stream isn't a QOI file
+     * @throws IOException If the stream can't be read or the header is broken
+     */
+    static QoiRowReader open(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        int read = 0;
+        while (read < HEADER_BYTES) {
+            int n = in.read(header, read, HEADER_BYTES - read);
+            if (n < 0) {
+                return null;
+            }
+            read += n;
+        }
+        if (intAt(header, 0) != QoiEncoder.MAGIC) {
+            return null;
+        }
+
+        int width = intAt(header, 4);
+        int height = intAt(header, 8);
+        int channels = header[12];
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IOException("A QOI of " + (width & 0xFFFFFFFFL) + "x" + (height & 0xFFFFFFFFL) + " pixels");
+        }
+        if (channels != 3 && channels != 4) {
+            throw new IOException("A QOI with " + channels + " channels");
+        }
+        return new QoiRowReader(in, width, height, channels);
+    }
+
+    /**
+     * @param header At least the first four bytes of a file
+     * @return True if they are the QOI magic
+     */
+    static boolean isQoi(byte[] header) {
+        return header.length >= 4 && intAt(header, 0) == QoiEncoder.MAGIC;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    boolean hasAlpha() {
+        return channels == 4;
+    }
+
+    /**
+     * Reads the next row of the image
+     *
+     * @param rgb Where the pixels go, at least as long as the width
+     * @return False if every row has already been read, rgb isn't touched then
+     * @throws IOException If the stream can't be read or the file ends early
+     */
+    boolean nextRow(int[] rgb) throws IOException {
+        if (row >= height) {
+            return false;
+        }
+        row++;
+
+        int[] index = this.index;
+        int px = this.px;
+        int run = this.run;
+        for (int x = 0; x < width; x++) {
+            if (run > 0) {
+                run--;
+                rgb[x] = px;
+                continue;
+            }
+
+            int b1 = next();
+            if (b1 == OP_RGB) {
+                px = (px & 0xFF000000) | next() << 16 | next() << 8 | next();
+            } else if (b1 == OP_RGBA) {
+                px = next() << 16 | next() << 8 | next();
+                px |= next() << 24;
+            } else {
+                switch (b1 & 0xC0) {
+                    case OP_INDEX:
+                        px = index[b1];
+                        break;
+                    case OP_DIFF:
+                        px = rgb(px, ((b1 >> 4) & 3) - 2, ((b1 >> 2) & 3) - 2, (b1 & 3) - 2);
+                        break;
+                    case OP_LUMA: {
+                        int b2 = next();
+                        int dg = (b1 & 0x3F) - 32;
+                        px = rgb(px, dg - 8 + ((b2 >> 4) & 0x0F), dg, dg - 8 + (b2 & 0x0F));
+                        break;
+                    }
+                    default:
+                        // a run of the pixel before, this pixel is the first of it
+                        run = b1 & 0x3F;
+                        break;
+                }
+            }
+            index[QoiEncoder.hash(px)] = px;
+            rgb[x] = px;
+        }
+        this.px = px;
+        this.run = run;
+        return true;
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Adds a difference to each color of a pixel, wrapping around like bytes do
+     */
+    private static int rgb(int px, int dr, int dg, int db) {
+        return (px & 0xFF000000) | ((((px >> 16) + dr) & 0xFF) << 16) | ((((px >> 8) + dg) & 0xFF) << 8)
+                | ((px + db) & 0xFF);
+    }
+
+    private int next() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                throw new EOFException("The QOI ends before its last pixel");
+            }
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    private static int intAt(byte[] b, int at) {
+        return (b[at] & 0xFF) << 24 | (b[at + 1] & 0xFF) << 16 | (b[at + 2] & 0xFF) << 8 | (b[at + 3] & 0xFF);
+    }
+}
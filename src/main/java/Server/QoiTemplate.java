@@ -0,0 +1,137 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A pre-encoded QOI of a carrier image, the QOI counterpart of PngTemplate. Encoding a whole QOI is cheap but it is
+ * still a pass over every pixel, while hideIP() only touches a couple dozen of them. So the image is cut into blocks
+ * of rows that are encoded once, and a modified copy of the carrier only has the blocks holding its changed rows
+ * encoded again, everything else is copied straight from the template.
+ * <p>
+ * A QOI is one stream where every pixel can refer to the pixel before it and to a table of colors seen earlier. Every
+ * block starts with a cut (see QoiEncoder.Scratch.cut()): its first pixel is written out in full and the table is
+ * only hit for colors seen inside the block, so the bytes of a block decode the same whatever came before them and
+ * blocks can be put back to back. That costs a few bytes per block over a QOI written in one go.
+ */
+public class QoiTemplate {
+
+    // small enough that re-encoding the blocks of a payload is quick, big enough that the cuts cost next to nothing
+    private static final int BLOCK_PIXELS = 16 * 1024;
+
+    private final int width;
+    private final int height;
+    private final int type;
+    private final boolean alpha;
+    private final int blockRows;
+    private final int[] pixels;
+    private final byte[] head;
+    private final byte[][] blocks;
+
+    /**
+     * Encodes every block of the image
+     *
+     * @param master A packed int image, see PixelRaster.toPackedInt(). It must not be changed afterwards
+     */
+    public QoiTemplate(BufferedImage master) {
+        width = master.getWidth();
+        height = master.getHeight();
+        type = master.getType();
+        int layout = PixelRaster.layoutOf(master);
+        if (layout != PixelRaster.INT_RGB && layout != PixelRaster.INT_ARGB) {
+            throw new IllegalArgumentException("QoiTemplate needs a packed int image, see PixelRaster.toPackedInt()");
+        }
+        alpha = master.getColorModel().hasAlpha();
+        blockRows = Math.max(1, BLOCK_PIXELS / width);
+        pixels = dataOf(master);
+
+        head = new byte[QoiRowReader.HEADER_BYTES];
+        QoiEncoder.header(head, width, height, alpha);
+
+        blocks = new byte[(height + blockRows - 1) / blockRows][];
+        try {
+            for (int b = 0; b < blocks.length; b++) {
+                ByteArrayOutputStream block = new ByteArrayOutputStream(blockRows * width);
+                encode(block, pixels, b * blockRows);
+                blocks[b] = block.toByteArray();
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a QOI of a copy of the master image. Blocks that don't overlap the dirty rows are taken from the template
+     * as is, the others are compared with the master and encoded again if anything in them changed.
+     *
+     * @param out           Where to write the QOI to
+     * @param img           A copy of the master image, with the same size and type
+     * @param firstDirtyRow The first row that might differ from the master, or -1 if none do
+     * @param lastDirtyRow  The last row that might differ from the master, or -1 if none do
+     * @throws IOException If writing to the stream fails
+     */
+    public void write(OutputStream out, BufferedImage img, int firstDirtyRow, int lastDirtyRow) throws IOException {
+        if (img.getWidth() != width || img.getHeight() != height || img.getType() != type) {
+            throw new IllegalArgumentException("The image doesn't match the template");
+        }
+        int[] data = dataOf(img);
+
+        out.write(head);
+        for (int b = 0; b < blocks.length; b++) {
+            int firstRow = b * blockRows;
+            int lastRow = Math.min(firstRow + blockRows, height) - 1;
+
+            if (lastRow >= firstDirtyRow && firstRow <= lastDirtyRow && data != pixels
+                    && !sameRows(data, firstRow, lastRow)) {
+                encode(out, data, firstRow);
+            } else {
+                out.write(blocks[b]);
+            }
+        }
+        out.write(QoiEncoder.END);
+    }
+
+    /**
+     * @return Roughly how much memory the template holds on to, not counting the master image
+     */
+    public long encodedBytes() {
+        long total = head.length;
+        for (byte[] block : blocks) {
+            total += block.length;
+        }
+        return total;
+    }
+
+    /**
+     * Encodes the template block of rows starting at firstRow, with a cut in front of it
+     */
+    private void encode(OutputStream out, int[] data, int firstRow) throws IOException {
+        int rows = Math.min(blockRows, height - firstRow);
+        QoiEncoder.Scratch scratch = QoiEncoder.scratch();
+        scratch.start(out);
+        scratch.cut();
+        scratch.encode(data, firstRow * width, (firstRow + rows) * width, alpha);
+        scratch.flush();
+    }
+
+    /**
+     * Checks if a range of rows of a copy is still identical to the master
+     */
+    private boolean sameRows(int[] data, int firstRow, int lastRow) {
+        int end = (lastRow + 1) * width;
+        for (int i = firstRow * width; i < end; i++) {
+            if (data[i] != pixels[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] dataOf(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+}
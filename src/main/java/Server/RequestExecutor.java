@@ -0,0 +1,63 @@
+package Server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed size pool of worker threads for the CPU heavy part of the image routes, decoding, encoding and compressing.
+ * Jetty's request threads hand that work to the workers and go back to Jetty's pool right away, so there are never
+ * more images being crunched at once than there are workers, however many connections are open. The queue in front
+ * of the workers is bounded too, once it is full new work is turned away instead of piling up.
+ */
+public class RequestExecutor {
+
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * @param threads How many images can be worked on at once
+     * @param queue   How many more can wait for a worker before new ones are rejected
+     */
+    public RequestExecutor(int threads, int queue) {
+        AtomicInteger count = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+            Thread t = new Thread(r, "image-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Hands a task to a worker without waiting for it
+     *
+     * @param task The work to do
+     * @throws RejectedExecutionException If every worker is busy and the queue is full
+     */
+    public void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * @return How many tasks are waiting for a worker right now
+     */
+    public int getQueued() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * @return How many workers are busy right now
+     */
+    public int getActive() {
+        return workers.getActiveCount();
+    }
+
+    /**
+     * Stops the workers once the tasks they already have are done
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+}
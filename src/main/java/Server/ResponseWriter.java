@@ -0,0 +1,413 @@
+package Server;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.Callback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the bodies of the image and download routes. Every response gets a Content-Length, and anything that only
+ * changes when a file on disk changes also gets an ETag so repeat fetches can be answered with a 304 and no body.
+ * <p>
+ * Files are memory mapped once and handed to Jetty as is, so their contents go from the page cache to the socket
+ * without ever being copied into the Java heap. Generated images are built in pooled direct buffers which Jetty can
+ * also write out without another copy.
+ * <p>
+ * Given a RequestExecutor, the request is switched into async mode and its body is built on a worker instead of on the
+ * request thread, which goes straight back to Jetty. The worker writes the finished body out with Servlet async I/O,
+ * so a slow client only holds on to a buffer and a connection instead of a whole thread. When the workers are all busy
+ * and their queue is full, requests get a 503 instead of waiting.
+ * <p>
+ * Bodies that are big or slow to build can be streamed instead, see stream().
+ */
+public class ResponseWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseWriter.class);
+
+    // how long building and writing an async body may take before Jetty gives up on it
+    private static final long WRITE_TIMEOUT_MILLIS = 60000;
+
+    private final BufferPool pool;
+    private final RequestExecutor workers;
+
+    // memory mapped files, keyed by path. Remapped if the file changes
+    private final ConcurrentHashMap<String, MappedFile> mapped = new ConcurrentHashMap<>();
+
+    public ResponseWriter(BufferPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * @param pool    Where the buffers for generated bodies come from
+     * @param workers Where to build generated bodies, or null to build them on the request thread and write them out
+     *                with blocking I/O
+     */
+    public ResponseWriter(BufferPool pool, RequestExecutor workers) {
+        this.pool = pool;
+        this.workers = workers;
+    }
+
+    /**
+     * Something that can write a response body to a stream
+     */
+    public interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Sends a file from disk
+     *
+     * @param request     The HTTP request, checked for If-None-Match
+     * @param response    The HTTP response to write to
+     * @param file        The file to send
+     * @param contentType The content type of the file
+     * @throws IOException If the file can't be read or the client went away
+     */
+    public void sendFile(Request request, Response response, File file, String contentType) throws IOException {
+        HttpServletResponse raw = response.raw();
+        if (!file.isFile()) {
+            raw.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        raw.setContentType(contentType);
+        if (notModified(request, raw, etagOf(file, ""))) {
+            return;
+        }
+
+        MappedFile map = map(file);
+        raw.setContentLengthLong(map.length);
+        Metrics.RESPONSE_BYTES.add(map.length);
+        long start = System.nanoTime();
+        long allocated = Metrics.allocatedBytes();
+
+        ServletOutputStream out = raw.getOutputStream();
+        if (out instanceof HttpOutput && workers != null && request.raw().isAsyncSupported()) {
+            sendAsync(request.raw(), (HttpOutput) out, map.buffer.duplicate(), null);
+        } else if (out instanceof HttpOutput) {
+            ((HttpOutput) out).sendContent(map.buffer.duplicate());
+        } else {
+            try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                while (position < map.length) {
+                    position += channel.transferTo(position, map.length - position, target);
+                }
+            }
+            raw.flushBuffer();
+        }
+        Metrics.WRITE.record(start, allocated);
+    }
+
+    /**
+     * Sends a generated body. The body is built in a pooled buffer first so the Content-Length is known up front.
+     *
+     * @param request     The HTTP request, checked for If-None-Match
+     * @param response    The HTTP response to write to
+     * @param contentType The content type of the body
+     * @param etag        An ETag for the body if it only depends on things that don't change per request, or null
+     * @param sizeHint    About how big the body will be, to pick a buffer that is big enough right away
+     * @param body        Writes the body
+     * @throws IOException If the body can't be built or the client went away
+     */
+    public void send(Request request, Response response, String contentType, String etag, int sizeHint, Body body)
+            throws IOException {
+        HttpServletResponse raw = response.raw();
+        raw.setContentType(contentType);
+        if (etag != null && notModified(request, raw, etag)) {
+            return;
+        }
+
+        BufferPool.BufferOutputStream buffer = new BufferPool.BufferOutputStream(pool, sizeHint);
+        ServletOutputStream out = raw.getOutputStream();
+        if (out instanceof HttpOutput && workers != null && request.raw().isAsyncSupported()) {
+            buildAsync(request.raw(), raw, (HttpOutput) out, buffer, body);
+            return;
+        }
+
+        try {
+            body.writeTo(buffer);
+            raw.setContentLength(buffer.size());
+            Metrics.RESPONSE_BYTES.add(buffer.size());
+            long start = System.nanoTime();
+            long allocated = Metrics.allocatedBytes();
+
+            if (out instanceof HttpOutput) {
+                ((HttpOutput) out).write(buffer.toBuffer());
+                raw.flushBuffer();
+            } else {
+                Channels.newChannel(out).write(buffer.toBuffer());
+                raw.flushBuffer();
+            }
+            Metrics.WRITE.record(start, allocated);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Sends a generated body as it is being written, without a Content-Length. Whatever the body writes goes to
+     * Jetty's response buffer and out to the client each time it fills up, so the client starts getting the body
+     * while the rest of it is still being built. The body is always written on the request thread, with blocking I/O.
+     *
+     * @param request     The HTTP request, checked for If-None-Match
+     * @param response    The HTTP response to write to
+     * @param contentType The content type of the body
+     * @param etag        An ETag for the body if it only depends on things that don't change per request, or null
+     * @param body        Writes the body
+     * @throws IOException If the body can't be built or the client went away
+     */
+    public void stream(Request request, Response response, String contentType, String etag, Body body)
+            throws IOException {
+        HttpServletResponse raw = response.raw();
+        raw.setContentType(contentType);
+        if (etag != null && notModified(request, raw, etag)) {
+            return;
+        }
+
+        CountingOutputStream out = new CountingOutputStream(raw.getOutputStream());
+        body.writeTo(out);
+        raw.flushBuffer();
+        Metrics.RESPONSE_BYTES.add(out.getByteCount());
+    }
+
+    /**
+     * Starts writing a body without waiting for it to be written. The response is committed by the time this
+     * returns, so Spark leaves it alone, and it is completed from Jetty's callback once the client has it all.
+     *
+     * @param request The raw request, switched into async mode
+     * @param out     The output of the response
+     * @param content The whole body
+     * @param buffer  The pooled buffer holding the body, released when the write is done. May be null
+     */
+    private static void sendAsync(HttpServletRequest request, HttpOutput out, ByteBuffer content,
+                                  BufferPool.BufferOutputStream buffer) {
+        sendAsync(request.startAsync(), out, content, buffer);
+    }
+
+    private static void sendAsync(AsyncContext async, HttpOutput out, ByteBuffer content,
+                                  BufferPool.BufferOutputStream buffer) {
+        async.setTimeout(WRITE_TIMEOUT_MILLIS);
+        out.sendContent(content, new Callback() {
+            @Override
+            public void succeeded() {
+                done();
+            }
+
+            @Override
+            public void failed(Throwable x) {
+                done();
+            }
+
+            private void done() {
+                if (buffer != null) {
+                    buffer.release();
+                }
+                async.complete();
+            }
+        });
+    }
+
+    /**
+     * Switches the request into async mode and builds the body on a worker, which sends it once it is done. The
+     * request thread returns right away.
+     */
+    private void buildAsync(HttpServletRequest request, HttpServletResponse raw, HttpOutput out,
+                            BufferPool.BufferOutputStream buffer, Body body) {
+        AsyncContext async = request.startAsync();
+        async.setTimeout(WRITE_TIMEOUT_MILLIS);
+        Handoff handoff = new Handoff(async, raw, out, buffer);
+        out.setInterceptor(handoff);
+
+        try {
+            workers.execute(() -> {
+                int status = HttpServletResponse.SC_OK;
+                try {
+                    body.writeTo(buffer);
+                } catch (Throwable e) {
+                    LOG.error("Building the body of {} failed", request.getRequestURI(), e);
+                    status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+                }
+                handoff.arrive(status);
+            });
+        } catch (RejectedExecutionException e) {
+            handoff.arrive(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Stands in for the output's interceptor while a body is built on a worker. Once the route returns Spark writes
+     * out whatever it returned and flushes, which would commit the response before its Content-Length is known, so
+     * that goes nowhere. The body is sent by whichever comes last, that flush or the worker finishing.
+     */
+    private static final class Handoff implements HttpOutput.Interceptor {
+        private final AsyncContext async;
+        private final HttpServletResponse raw;
+        private final HttpOutput out;
+        private final HttpOutput.Interceptor next;
+        private final BufferPool.BufferOutputStream buffer;
+
+        // the route returning and the worker finishing
+        private final AtomicInteger arrived = new AtomicInteger();
+        private volatile boolean flushed;
+        private volatile int status;
+
+        Handoff(AsyncContext async, HttpServletResponse raw, HttpOutput out, BufferPool.BufferOutputStream buffer) {
+            this.async = async;
+            this.raw = raw;
+            this.out = out;
+            this.next = out.getInterceptor();
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(ByteBuffer content, boolean complete, Callback callback) {
+            content.position(content.limit());
+            callback.succeeded();
+            if (!flushed) {
+                flushed = true;
+                arrive(-1);
+            }
+        }
+
+        @Override
+        public HttpOutput.Interceptor getNextInterceptor() {
+            return next;
+        }
+
+        @Override
+        public boolean isOptimizedForDirectBuffers() {
+            return next.isOptimizedForDirectBuffers();
+        }
+
+        /**
+         * @param status The status of the response if it is the worker arriving, -1 for the route
+         */
+        void arrive(int status) {
+            if (status >= 0) {
+                this.status = status;
+            }
+            if (arrived.incrementAndGet() == 2) {
+                send();
+            }
+        }
+
+        private void send() {
+            // forget what Spark wrote, the response hasn't been committed
+            out.setInterceptor(next);
+            out.resetBuffer();
+            try {
+                if (status != HttpServletResponse.SC_OK) {
+                    buffer.release();
+                    raw.setStatus(status);
+                    raw.setContentType("text/plain");
+                    raw.setContentLength(0);
+                    async.complete();
+                    return;
+                }
+
+                raw.setContentLength(buffer.size());
+                Metrics.RESPONSE_BYTES.add(buffer.size());
+                long start = System.nanoTime();
+                long allocated = Metrics.allocatedBytes();
+                sendAsync(async, out, buffer.toBuffer(), buffer);
+                Metrics.WRITE.record(start, allocated);
+            } catch (IllegalStateException e) {
+                // the async context timed out before the body was ready, Jetty has answered already
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Builds an ETag from the modification time and size of a file
+     *
+     * @param file    The file the response depends on
+     * @param variant Tells apart different responses built from the same file
+     * @return A quoted ETag
+     */
+    public static String etagOf(File file, String variant) {
+        return "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()) + variant + "\"";
+    }
+
+    /**
+     * Sets the ETag of the response and, if the client already has that version, answers with a 304
+     *
+     * @return True if the response has been completed with a 304
+     */
+    private static boolean notModified(Request request, HttpServletResponse raw, String etag) throws IOException {
+        raw.setHeader("ETag", etag);
+
+        String ifNoneMatch = request.headers("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals(etag) || candidate.equals("W/" + etag) || candidate.equals("*")) {
+                raw.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                raw.setContentLength(0);
+                raw.flushBuffer();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the memory mapping of a file, mapping it again if it has changed since the last time
+     */
+    private MappedFile map(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        MappedFile map = mapped.get(key);
+        if (map != null && map.lastModified == lastModified && map.length == length) {
+            return map;
+        }
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            map = new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), lastModified,
+                    channel.size());
+        }
+        mapped.put(key, map);
+        return map;
+    }
+
+    /**
+     * A memory mapped file and the state of the file when it was mapped
+     */
+    private static class MappedFile {
+        final ByteBuffer buffer;
+        final long lastModified;
+        final long length;
+
+        MappedFile(MappedByteBuffer buffer, long lastModified, long length) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package Server;
+
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A second, much tougher way of hiding the IP, for images that might be re-saved as JPEGs somewhere along the way. The
+ * low nibbles Steganography writes to are the first thing a JPEG encoder throws away, but the average brightness of
+ * an 8x8 block is the DC coefficient of that block, which JPEG keeps almost exactly even at low quality settings.
+ * <p>
+ * So instead of single pixels, the IP goes into the brightness of whole blocks. The 32 bits of the address and a 16
+ * bit checksum are each written to hundreds of blocks spread all over the image, by nudging the block's average
+ * brightness onto one of two interleaved grids of values, step apart (quantization index modulation). Every pixel of
+ * the block moves by the same amount, at most step / 2 up or down for most blocks, so the picture keeps its detail.
+ * <p>
+ * Reading it back, each block gives a soft vote: how close its brightness is to the grid of a 0 or of a 1. The votes
+ * for each bit are added up and the sign decides the bit, so a lot of blocks can be damaged before a bit flips. Only
+ * if the votes agree well enough and the checksum matches is the IP reported.
+ * <p>
+ * The blocks line up with the JPEG block grid, so the image has to keep its size, crops and scaling lose the payload.
+ * Which blocks carry which bit, and the offset of each block's grid, come from a fixed seed and the image size, so the
+ * decoder only has to know the step the image was written with.
+ */
+public class RobustCodec {
+
+    // the step the server and the decoders use unless told otherwise. It moves pixels by about 2 levels on average and
+    // still reads back from JPEGs saved at quality 30
+    public static final int DEFAULT_STEP = 8;
+
+    // the blocks are the same size as JPEG's so they line up with its grid
+    static final int BLOCK = 8;
+
+    // the IP followed by a 16 bit checksum of it
+    static final int PAYLOAD_BITS = 48;
+
+    // every bit has to be written to at least this many blocks
+    static final int MIN_REPEATS = 5;
+
+    // how much the votes have to agree on average, 1 being every block agreeing completely. Random images come out
+    // well below this
+    static final double MIN_CONFIDENCE = 0.25;
+
+    private static final long SEED = 0x53544547414CL;
+
+    private final int step;
+
+    // the layout for each image size seen so far, keyed by width << 32 | height
+    private final ConcurrentHashMap<Long, Layout> layouts = new ConcurrentHashMap<>();
+
+    /**
+     * @param step How far apart the brightness values for a 0 and a 1 are, 4 - 64. Bigger steps survive rougher JPEG
+     *             compression but show more. The decoder has to use the same step as the server
+     */
+    public RobustCodec(int step) {
+        if (step < 4 || step > 64) {
+            throw new IllegalArgumentException("The step is 4 - 64, got " + step);
+        }
+        this.step = step;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * @param width  The width of an image
+     * @param height The height of an image
+     * @return True if the image has enough whole blocks for a robust IP
+     */
+    public static boolean canHold(int width, int height) {
+        return (long) (width / BLOCK) * (height / BLOCK) >= PAYLOAD_BITS * MIN_REPEATS;
+    }
+
+    /**
+     * Hides an IPv4 address in the brightness of the image's blocks. Every whole block of the image is changed, so
+     * the whole image has to be encoded again afterwards.
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param ipStr  The IPv4 address in a standard string
+     * @throws IllegalArgumentException If the image is too small, see canHold()
+     */
+    public void hideIP(PixelRaster raster, String ipStr) {
+        int width = raster.getWidth();
+        if (!canHold(width, raster.getHeight())) {
+            throw new IllegalArgumentException("A robust IP needs " + PAYLOAD_BITS * MIN_REPEATS + " blocks of "
+                    + BLOCK + "x" + BLOCK + " pixels, the image is " + width + "x" + raster.getHeight());
+        }
+
+        long payload = payload(Steganography.parseIP(ipStr));
+        Layout layout = layout(width, raster.getHeight());
+        int[] pixels = new int[BLOCK * BLOCK];
+        double half = step / 2.0;
+
+        for (int b = 0; b < layout.bits.length; b++) {
+            int origin = (b / layout.columns) * BLOCK * width + (b % layout.columns) * BLOCK;
+            read(raster, origin, pixels);
+            double mean = brightness(pixels);
+
+            // the nearest value on the grid of the bit, kept far enough from black and white to stay reachable
+            double offset = layout.dither[b] + ((payload >>> layout.bits[b]) & 1) * half;
+            double target = offset + step * Math.round((mean - offset) / step);
+            if (target < half) {
+                target += step;
+            } else if (target > 255 - half) {
+                target -= step;
+            }
+
+            // pixels that hit black or white hold the mean back, another pass makes up for it with the others
+            boolean changed = false;
+            for (int pass = 0; pass < 3; pass++) {
+                int delta = (int) Math.round(target - mean);
+                if (delta == 0) {
+                    break;
+                }
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = shift(pixels[i], delta);
+                }
+                mean = brightness(pixels);
+                changed = true;
+            }
+            if (changed) {
+                write(raster, origin, pixels);
+            }
+        }
+    }
+
+    /**
+     * Reads a robust IP back out of an image
+     *
+     * @param img The buffered image to inspect
+     * @return The hidden IP, or an empty string if there isn't one the votes agree on
+     */
+    public String retrieveIP(BufferedImage img) {
+        if (!canHold(img.getWidth(), img.getHeight())) {
+            return "";
+        }
+        return retrieveIP(PixelRaster.forReading(img));
+    }
+
+    /**
+     * Raster version of retrieveIP()
+     *
+     * @param raster The pixel raster of the image to inspect
+     * @return The hidden IP, or an empty string if there isn't one the votes agree on
+     */
+    public String retrieveIP(PixelRaster raster) {
+        if (!canHold(raster.getWidth(), raster.getHeight())) {
+            return "";
+        }
+
+        double[] votes = votes(raster);
+        long payload = 0;
+        double confidence = 0;
+        for (int bit = 0; bit < PAYLOAD_BITS; bit++) {
+            if (votes[bit] < 0) {
+                payload |= 1L << bit;
+            }
+            confidence += Math.abs(votes[bit]);
+        }
+        if (confidence / PAYLOAD_BITS < MIN_CONFIDENCE) {
+            return "";
+        }
+
+        int ip = (int) payload;
+        if (payload >>> 32 != checksum(ip)) {
+            return "";
+        }
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    /**
+     * Decodes an image and reports how the decode went
+     *
+     * @param img The buffered image to inspect
+     * @return The hidden IP with the ROBUST path
+     */
+    public DecodeResult decode(BufferedImage img) {
+        return new DecodeResult(retrieveIP(img), DecodeResult.ROBUST, 0);
+    }
+
+    /**
+     * Adds up the soft votes of every block. A block right on the grid of a 0 votes +1, right on the grid of a 1 it
+     * votes -1, and anything in between votes somewhere in between.
+     *
+     * @return The average vote for each payload bit, from -1 to 1
+     */
+    double[] votes(PixelRaster raster) {
+        int width = raster.getWidth();
+        Layout layout = layout(width, raster.getHeight());
+        int[] pixels = new int[BLOCK * BLOCK];
+        double[] votes = new double[PAYLOAD_BITS];
+
+        for (int b = 0; b < layout.bits.length; b++) {
+            int origin = (b / layout.columns) * BLOCK * width + (b % layout.columns) * BLOCK;
+            read(raster, origin, pixels);
+            votes[layout.bits[b]] += Math.cos(2 * Math.PI * (brightness(pixels) - layout.dither[b]) / step);
+        }
+        for (int bit = 0; bit < PAYLOAD_BITS; bit++) {
+            votes[bit] /= layout.repeats[bit];
+        }
+        return votes;
+    }
+
+    /**
+     * The IP in the low 32 bits and its checksum above it
+     */
+    private static long payload(int[] octet) {
+        int ip = (octet[0] << 24) | (octet[1] << 16) | (octet[2] << 8) | octet[3];
+        return ((long) checksum(ip) << 32) | (ip & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The low 16 bits of the CRC-32 of the address
+     */
+    private static int checksum(int ip) {
+        CRC32 crc = new CRC32();
+        crc.update(ip >>> 24);
+        crc.update(ip >>> 16);
+        crc.update(ip >>> 8);
+        crc.update(ip);
+        return (int) crc.getValue() & 0xFFFF;
+    }
+
+    private static void read(PixelRaster raster, int origin, int[] pixels) {
+        int width = raster.getWidth();
+        int p = 0;
+        for (int y = 0; y < BLOCK; y++) {
+            for (int x = 0, i = origin + y * width; x < BLOCK; x++, i++) {
+                pixels[p++] = raster.rgb(i);
+            }
+        }
+    }
+
+    private static void write(PixelRaster raster, int origin, int[] pixels) {
+        int width = raster.getWidth();
+        int p = 0;
+        for (int y = 0; y < BLOCK; y++) {
+            for (int x = 0, i = origin + y * width; x < BLOCK; x++, i++) {
+                raster.writeRGB(i, pixels[p++]);
+            }
+        }
+    }
+
+    /**
+     * The average brightness of a block, 0 - 255, with the same weights JPEG uses for its Y channel
+     */
+    private static double brightness(int[] pixels) {
+        long sum = 0;
+        for (int rgb : pixels) {
+            sum += 299 * ((rgb >> 16) & 0xFF) + 587 * ((rgb >> 8) & 0xFF) + 114 * (rgb & 0xFF);
+        }
+        return sum / (1000.0 * pixels.length);
+    }
+
+    /**
+     * Moves each color of a pixel by the same amount, which moves its brightness by that amount unless a color hits
+     * black or white
+     */
+    private static int shift(int rgb, int delta) {
+        int r = Math.min(255, Math.max(0, ((rgb >> 16) & 0xFF) + delta));
+        int g = Math.min(255, Math.max(0, ((rgb >> 8) & 0xFF) + delta));
+        int b = Math.min(255, Math.max(0, (rgb & 0xFF) + delta));
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private Layout layout(int width, int height) {
+        long size = ((long) width << 32) | height;
+        Layout cached = layouts.get(size);
+        if (cached != null) {
+            return cached;
+        }
+        layouts.putIfAbsent(size, new Layout(width / BLOCK, height / BLOCK, step, new SplittableRandom(SEED ^ size)));
+        return layouts.get(size);
+    }
+
+    /**
+     * Which bit each block of an image carries and where its grid starts. The bits are dealt out round robin over a
+     * shuffled list of the blocks, so every bit is spread over the whole image and no bit has more than one block
+     * more than any other.
+     */
+    private static final class Layout {
+        final int columns;
+        final byte[] bits;
+        final float[] dither;
+        final int[] repeats = new int[PAYLOAD_BITS];
+
+        Layout(int columns, int rows, int step, SplittableRandom rand) {
+            this.columns = columns;
+            int blocks = columns * rows;
+
+            int[] order = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                order[i] = i;
+            }
+            for (int i = blocks - 1; i > 0; i--) {
+                int j = rand.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+
+            bits = new byte[blocks];
+            dither = new float[blocks];
+            for (int i = 0; i < blocks; i++) {
+                bits[order[i]] = (byte) (i % PAYLOAD_BITS);
+                repeats[i % PAYLOAD_BITS]++;
+            }
+            for (int b = 0; b < blocks; b++) {
+                dither[b] = (float) (rand.nextDouble() * step);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package Server;
+
+/**
+ * The knobs for tuning the webserver. Every option has a sensible default so the server runs fine without any of them
+ * being set. They can be passed to Main on the command line in the form --name=value, for example
+ * <p>
+ * java -jar server.jar --port=8080 --parallel-threshold=4000000
+ * <p>
+ * Under heavy load, --workers=N moves the image work off of Jetty's threads onto N workers and writes the images out
+ * asynchronously, see ResponseWriter.
+ */
+public class ServerOptions {
+
+    // local port on which the server is to bind
+    public int port = 4567;
+
+    // images with more pixels than this are decoded with the ParallelDecoder
+    public int parallelThreshold = ParallelDecoder.DEFAULT_THRESHOLD;
+
+    // the directory the CarrierCatalog finds carriers in, and the one /stega uses
+    public String carrierDir = "./src/main/resources/";
+    public String stegaCarrier = "dogs.jpg";
+
+    // how many carriers are decoded and indexed at once in the background after startup
+    public int carrierThreads = 2;
+
+    // how many megabytes of decoded carrier images the CarrierCache may hold
+    public int cacheMegabytes = 256;
+
+    // the shared secret for keyed placement, see KeyedPlacement. The IP is written in one run of pixels when unset
+    public String key = null;
+
+    // with a step, /stega also hides the IP in the brightness of the carrier's blocks so it survives being re-saved as
+    // a JPEG, see RobustCodec. 0 turns it off. The decoder has to be given the same step
+    public int robustStep = 0;
+
+    // how many pre-rendered watermarks to keep ready per carrier for /stega, 0 turns the WatermarkPool off
+    public int poolDepth = 0;
+
+    // how many threads render new watermarks for the pool
+    public int poolThreads = 1;
+
+    // the most threads Jetty may use for requests, 0 keeps Spark's default
+    public int jettyThreads = 0;
+
+    // how many worker threads build image responses, 0 builds them on Jetty's threads with blocking writes
+    public int workerThreads = 0;
+
+    // how many image responses may wait for a worker before requests get a 503
+    public int workerQueue = 256;
+
+    // when /stega reads the IP back out of its response: off, sampled or async, see Verifier
+    public Verifier.Mode verify = Verifier.Mode.OFF;
+
+    // with sampled or async verification, one response in this many is checked
+    public int verifyEvery = 100;
+
+    // the threads behind POST /decode, 0 turns the route off. See DecodeService
+    public int decodeThreads = 2;
+
+    // how many uploaded images may wait or be decoded at once before /decode answers 503. Every request takes one of
+    // them while its upload is read, so this also caps how many uploads are read at once, and one request can't
+    // upload more images than this
+    public int decodeQueue = 64;
+
+    // the most images a decode thread takes off the queue at once
+    public int decodeBatch = 8;
+
+    // the most megabytes and images one /decode request may upload
+    public int decodeMaxMegabytes = 16;
+    public int decodeMaxImages = 16;
+
+    // the deflate level and strategy (default, filtered or huffman) for PNGs written with the PngEncoder. Level 1 is a
+    // lot faster than the default level and still comes out smaller than ImageIO's PNGs, see PngBenchmark
+    public int pngLevel = 1;
+    public String pngStrategy = "default";
+
+    // the formats /stega can answer in, the first one unless the client's Accept header names another. See
+    // OutputFormat
+    public String formats = "png,qoi";
+
+    // the level of the server's own logging: error, warn, info, debug or trace. Null keeps the default, info
+    public String logLevel = null;
+
+    /**
+     * Builds the options from command line arguments. Anything that isn't mentioned keeps its default value.
+     *
+     * @param args Arguments in the form --name=value
+     * @return The parsed options
+     */
+    public static ServerOptions fromArgs(String[] args) {
+        ServerOptions options = new ServerOptions();
+
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Options look like --name=value, got " + arg);
+            }
+            String name = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+
+            switch (name) {
+                case "port":
+                    options.port = Integer.parseInt(value);
+                    break;
+                case "parallel-threshold":
+                    options.parallelThreshold = Integer.parseInt(value);
+                    break;
+                case "cache-mb":
+                    options.cacheMegabytes = Integer.parseInt(value);
+                    break;
+                case "carriers":
+                    options.carrierDir = value;
+                    break;
+                case "carrier":
+                    options.stegaCarrier = value;
+                    break;
+                case "carrier-threads":
+                    options.carrierThreads = Integer.parseInt(value);
+                    break;
+                case "key":
+                    options.key = value.isEmpty() ? null : value;
+                    break;
+                case "robust":
+                    options.robustStep = Integer.parseInt(value);
+                    break;
+                case "pool-depth":
+                    options.poolDepth = Integer.parseInt(value);
+                    break;
+                case "pool-threads":
+                    options.poolThreads = Integer.parseInt(value);
+                    break;
+                case "jetty-threads":
+                    options.jettyThreads = Integer.parseInt(value);
+                    break;
+                case "workers":
+                    options.workerThreads = Integer.parseInt(value);
+                    break;
+                case "worker-queue":
+                    options.workerQueue = Integer.parseInt(value);
+                    break;
+                case "verify":
+                    options.verify = Verifier.Mode.of(value);
+                    break;
+                case "verify-every":
+                    options.verifyEvery = Integer.parseInt(value);
+                    break;
+                case "decode-threads":
+                    options.decodeThreads = Integer.parseInt(value);
+                    break;
+                case "decode-queue":
+                    options.decodeQueue = Integer.parseInt(value);
+                    break;
+                case "decode-batch":
+                    options.decodeBatch = Integer.parseInt(value);
+                    break;
+                case "decode-max-mb":
+                    options.decodeMaxMegabytes = Integer.parseInt(value);
+                    break;
+                case "decode-max-images":
+                    options.decodeMaxImages = Integer.parseInt(value);
+                    break;
+                case "png-level":
+                    options.pngLevel = Integer.parseInt(value);
+                    break;
+                case "png-strategy":
+                    options.pngStrategy = value;
+                    break;
+                case "formats":
+                    OutputFormat.parse(value);
+                    options.formats = value;
+                    break;
+                case "log-level":
+                    options.logLevel = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        return options;
+    }
+}
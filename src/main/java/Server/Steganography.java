@@ -1,12 +1,12 @@
 package Server;
 
-import java.awt.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
-import java.util.Random;
 
 /**
  * Created by Paul Mbusa
@@ -22,6 +22,16 @@ import java.util.Random;
  */
 public class Steganography {
 
+    private static final Logger LOG = LoggerFactory.getLogger(Steganography.class);
+
+    // Number of pixels used by each part of the hidden message
+    static final int HEADER_LENGTH = 10;
+    static final int IP_LENGTH = 12;
+    static final int DELIMITER_LENGTH = 5;
+
+    // Number of pixels the whole payload takes up, the header, the IP and the delimiter
+    static final int PAYLOAD_LENGTH = HEADER_LENGTH + IP_LENGTH + DELIMITER_LENGTH;
+
     /**
      * This function stores one integer of data in the range of 0 to 16, in one pixel of an image.
      *
@@ -31,58 +41,68 @@ public class Steganography {
      * @param data The integer you wish to store
      */
     public static void setPixel(BufferedImage img, int x, int y, int data) {
+        setPixel(new PixelRaster(img), y * img.getWidth() + x, data, EncodingRandom.threadLocal());
+    }
 
-        // resources needed to work with pixels
-        ColorModel cm = img.getColorModel();
-        Random rand = new Random();
-        //int pixel = img.getRGB(x, y);
-
-        Color col = new Color(img.getRGB(x, y), cm.hasAlpha());
+    /**
+     * This function stores one integer of data in the range of 0 to 16, in one pixel of an image. The supplied
+     * PixelCursor is also advanced to the next position. It wraps the image in a new PixelRaster on every call, so
+     * callers writing pixel after pixel should make one raster and use the raster version.
+     *
+     * @param img    The buffered image to modify
+     * @param cursor A PixelCursor used to keep track of the current location
+     * @param data   The integer you wish to store
+     * @throws IllegalArgumentException If the cursor is already at the end of its range
+     */
+    public static void setPixel(BufferedImage img, PixelCursor cursor, int data) {
+        setPixel(new PixelRaster(img), cursor, data);
+    }
 
-        // pull the original data values of the pixel
+    /**
+     * setPixel() through a raster the caller holds on to. The cursor is moved on to the next pixel
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param cursor A PixelCursor used to keep track of the current location
+     * @param data   The integer you wish to store
+     * @throws IllegalArgumentException If the cursor is already at the end of its range
+     */
+    public static void setPixel(PixelRaster raster, PixelCursor cursor, int data) {
+        if (!cursor.hasNext()) {
+            throw new IllegalArgumentException("Pixel " + cursor.index() + " is past the end of the cursor");
+        }
+        setPixel(raster, cursor, data, EncodingRandom.threadLocal());
+    }
 
-        int redVal = col.getRed();
-        int greenVal = col.getGreen();
-        int blueVal = col.getBlue();
-        int alphaVal = col.getAlpha();
+    /**
+     * This is where the pixels actually get written. The data is split randomly between the red, green and blue
+     * values so that two images encoded with the same information won't have the same exact color values.
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param index  The flat index of the pixel to modify
+     * @param data   The integer you wish to store
+     * @param rand   The source of randomness for splitting the data between the channels
+     */
+    static void setPixel(PixelRaster raster, int index, int data, EncodingRandom rand) {
 
         // calculate the randomized values for hiding the data
         int redSub = rand.nextInt(data + 1);
         int greenSub = rand.nextInt(data + 1 - redSub);
         int blueSub = data - redSub - greenSub;
 
-
-        // Clear out the least significant digit to prep for hiding data
-        redVal = (redVal / 16) * 16;
-        greenVal = (greenVal / 16) * 16;
-        blueVal = (blueVal / 16) * 16;
-
-
-        // Fill the true pixel values with hidden data
-        redVal += redSub;
-        greenVal += greenSub;
-        blueVal += blueSub;
-        if (alphaVal <= 0) alphaVal = 1;
-
-
-        // Set the pixel to the new value of with the hidden data in it
-        Color c = new Color(redVal, greenVal, blueVal, alphaVal);
-        img.setRGB(x, y, c.getRGB());
-
-
+        // Replace the least significant digit of each color with the hidden data
+        raster.writeNibbles(index, redSub, greenSub, blueSub);
     }
 
     /**
-     * This function stores one integer of data in the range of 0 to 16 in one pixel of an image. The supplied
-     * PixelCoordinate object is also advanced to the next position.
+     * setPixel() at the cursor, which is moved on to the next pixel
      *
-     * @param img   The buffered image to modify
-     * @param coord A PixelCoordinate object used to keep track of the current location
-     * @param data  The integer you wish to store
+     * @param raster The pixel raster of the image to modify
+     * @param cursor Where to write, checking that there is room is up to the caller
+     * @param data   The integer you wish to store
+     * @param rand   The source of randomness for splitting the data between the channels
      */
-    public static void setPixel(BufferedImage img, PixelCoordinate coord, int data) {
-        setPixel(img, coord.x, coord.y, data);
-        coord.nextPixel();
+    static void setPixel(PixelRaster raster, PixelCursor cursor, int data, EncodingRandom rand) {
+        setPixel(raster, cursor.next(), data, rand);
     }
 
 
@@ -90,20 +110,47 @@ public class Steganography {
      * This function sets the entry point for the hidden data. A decoder searches for this pattern and when it is
      * found, the resulting secret content can be revealed.
      *
-     * @param img   The buffered image to modify
-     * @param coord A PixelCoordinate object used to keep track of the current location
+     * @param img    The buffered image to modify
+     * @param cursor A PixelCursor used to keep track of the current location
+     * @throws IllegalArgumentException If the header doesn't fit between the cursor and the end of its range
+     */
+    public static void setHeader(BufferedImage img, PixelCursor cursor) {
+        setHeader(new PixelRaster(img), cursor);
+    }
+
+    /**
+     * setHeader() through a raster the caller holds on to. The cursor ends up on the pixel right after the header.
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param cursor A PixelCursor used to keep track of the current location
+     * @throws IllegalArgumentException If the header doesn't fit between the cursor and the end of its range
      */
-    public static void setHeader(BufferedImage img, PixelCoordinate coord) {
+    public static void setHeader(PixelRaster raster, PixelCursor cursor) {
+        if (cursor.remaining() < HEADER_LENGTH) {
+            throw new IllegalArgumentException("The header needs " + HEADER_LENGTH + " pixels, there are only "
+                    + cursor.remaining() + " left");
+        }
+        setHeader(raster, cursor, EncodingRandom.threadLocal());
+    }
+
+    /**
+     * Raster version of setHeader(), used by hideIP() so the whole encode goes through a single PixelRaster. The
+     * cursor ends up on the pixel right after the header.
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param cursor On the first header pixel, checking that there is room is up to the caller
+     * @param rand   The source of randomness for splitting the data between the channels
+     */
+    static void setHeader(PixelRaster raster, PixelCursor cursor, EncodingRandom rand) {
 
         // Set the first five pixels to a value of 11
         for (int i = 0; i < 5; i++) {
-            setPixel(img, coord, 11);
-
+            setPixel(raster, cursor, 11, rand);
         }
 
         // Set the next five pixels to a value of 12
         for (int i = 5; i < 10; i++) {
-            setPixel(img, coord, 12);
+            setPixel(raster, cursor, 12, rand);
         }
     }
 
@@ -111,37 +158,56 @@ public class Steganography {
      * * This function sets the termination pattern of the hidden data. Currently it is unused due to only one type
      * of information able to be encoded, an IPv4 address. I think it works though
      *
-     * @param img   The buffered image to modify
-     * @param coord A PixelCoordinate object used to keep track of the current location
+     * @param img    The buffered image to modify
+     * @param cursor A PixelCursor used to keep track of the current location
      * @return Returns true for successfully setting the delimiter and false for a failed attempt
      */
-    public static boolean setDelimiter(BufferedImage img, PixelCoordinate coord) {
-        int maxWidth = img.getWidth();
-        int maxHeight = img.getHeight();
-        int pixelCount = maxHeight * maxWidth;
+    public static boolean setDelimiter(BufferedImage img, PixelCursor cursor) {
+        return setDelimiter(new PixelRaster(img), cursor);
+    }
 
+    /**
+     * setDelimiter() through a raster the caller holds on to. The cursor ends up on the pixel right after the
+     * delimiter.
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param cursor On the pixel of where to begin the delimination pattern
+     * @return Returns true for successfully setting the delimiter and false if it doesn't fit, nothing is written then
+     */
+    public static boolean setDelimiter(PixelRaster raster, PixelCursor cursor) {
+        return setDelimiter(raster, cursor, EncodingRandom.threadLocal());
+    }
 
-        // Verify that we're in bounds for the delimiter
-        // This isn't really needed in this new versio but it has future applications
-        int remainingPixels = pixelCount - (maxWidth * coord.y) - coord.x;
-        if (pixelCount - remainingPixels > 5) {
+    /**
+     * Raster version of setDelimiter(). The cursor ends up on the pixel right after the delimiter.
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param cursor On the pixel of where to begin the delimination pattern
+     * @param rand   The source of randomness for splitting the data between the channels
+     * @return Returns true for successfully setting the delimiter and false if it doesn't fit, nothing is written then
+     */
+    static boolean setDelimiter(PixelRaster raster, PixelCursor cursor, EncodingRandom rand) {
 
+        // Verify that the whole delimiter fits between the cursor and the end of its range
+        if (cursor.remaining() < DELIMITER_LENGTH || cursor.end() > raster.getPixelCount()) {
             return false;
         }
 
 
         // set the next five pixels to 13 to signify the end of the hidden data
-        for (int i = 0; i < 5; i++) {
+        for (int i = 0; i < DELIMITER_LENGTH; i++) {
 
-            System.out.println("Set pixel (" + coord.x + "," + coord.y + ") to value 13");
-            setPixel(img, coord, 13);
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Set pixel ({},{}) to value 13", cursor.x(), cursor.y());
+            }
+            setPixel(raster, cursor, 13, rand);
         }
         return true;
     }
 
     /**
-     * This is a wrapper function for the more explicit form of setDelimiter(). It allows for the use of a
-     * PixelCoordinate object to streamline implementation
+     * This is a wrapper function for the more explicit form of setDelimiter() that takes a PixelCursor, for callers
+     * that only have the coordinates
      *
      * @param img    The buffered image to modify
      * @param xStart The X-coordinate of where to begin the delimination pattern
@@ -149,9 +215,13 @@ public class Steganography {
      * @return This is unused at the moment.
      */
     public static boolean setDelimiter(BufferedImage img, int xStart, int yStart) {
-        PixelCoordinate coord = new PixelCoordinate(img, xStart, yStart);
+        int pixelCount = img.getWidth() * img.getHeight();
+        int index = yStart * img.getWidth() + xStart;
+        if (xStart < 0 || xStart >= img.getWidth() || index < 0 || index > pixelCount) {
+            return false;
+        }
 
-        return setDelimiter(img, coord);
+        return setDelimiter(img, new PixelCursor(img.getWidth(), index, pixelCount));
     }
 
     /**
@@ -169,67 +239,139 @@ public class Steganography {
      * @return This is unused at the moment.
      */
     public static boolean hideIP(BufferedImage img, String ipStr) {
+        return hideIP(new PixelRaster(img), ipStr);
+    }
 
-        // pull out each individual octet from the ip address
-        int octet[] = new int[4];
-        for (int i = 0; ipStr.contains("."); i++) {
-            String subIP = ipStr.substring(0, ipStr.indexOf('.'));
-            octet[i] = Integer.parseInt(subIP);
+    /**
+     * Raster version of hideIP(). Every pixel of the payload is written through the one PixelRaster.
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param ipStr  The IPv4 address in a standard string. This will be encoded into the image
+     * @return This is unused at the moment.
+     */
+    public static boolean hideIP(PixelRaster raster, String ipStr) {
+        return hideIP(raster, ipStr, EncodingRandom.threadLocal());
+    }
 
-            ipStr = ipStr.substring(ipStr.indexOf('.') + 1);
-        }
-        octet[3] = Integer.parseInt(ipStr);
+    /**
+     * hideIP() with a chosen source of randomness. Passing a keyed EncodingRandom puts the IP in the same place with
+     * the same color values every time, which is handy for tests and benchmarks.
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param ipStr  The IPv4 address in a standard string. This will be encoded into the image
+     * @param rand   Picks the location of the IP and how each digit is split between the colors
+     * @return This is unused at the moment.
+     */
+    public static boolean hideIP(PixelRaster raster, String ipStr, EncodingRandom rand) {
 
+        // pull out each individual octet from the ip address
+        int octet[] = parseIP(ipStr);
 
-        // Encode the IP into the image in a random location.
-        Random rand = new Random();
+        // Encode the IP into the image in a random location. Every start before this one leaves enough room after it
+        int range = CarrierIndex.startRange(raster.getPixelCount());
+        if (range <= 0) {
+            throw new IllegalArgumentException("The image only has " + raster.getPixelCount()
+                    + " pixels, an IP needs more than " + CarrierIndex.PAYLOAD_ROOM);
+        }
+        int index = rand.nextInt(range);
 
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("x: {}, y: {}", index % raster.getWidth(), index / raster.getWidth());
+        }
 
-        int x;
-        int y;
-        int pixelCount = img.getHeight() * img.getWidth();
+        return hideIP(raster, octet, index, rand);
+    }
 
-        while (true) {
-            x = rand.nextInt(img.getWidth());
-            y = rand.nextInt(img.getHeight());
+    /**
+     * hideIP() at a spot the caller already picked, usually with CarrierIndex.pickStart()
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param ipStr  The IPv4 address in a standard string. This will be encoded into the image
+     * @param start  The flat index of the first pixel of the header
+     * @param rand   Decides how each digit is split between the colors
+     * @return This is unused at the moment.
+     * @throws IllegalArgumentException If the payload doesn't fit between the start and the end of the image
+     */
+    public static boolean hideIP(PixelRaster raster, String ipStr, int start, EncodingRandom rand) {
+        return hideIP(raster, parseIP(ipStr), start, rand);
+    }
 
-            // Exit on: total pixel count has enough space from start to end so it doesn't overflow
+    private static boolean hideIP(PixelRaster raster, int[] octet, int index, EncodingRandom rand) {
 
-            System.out.println("x: " + x + ", y: " + y);
+        // make sure the whole payload fits before writing any of it
+        if (index < 0 || index > raster.getPixelCount() - PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("A payload at pixel " + index + " doesn't fit in an image of "
+                    + raster.getPixelCount() + " pixels");
+        }
 
-            int remainingPixels = pixelCount - (y * img.getWidth()) - x;
+        // one cursor walks over the whole payload
+        PixelCursor cursor = new PixelCursor(raster.getWidth(), index, index + PAYLOAD_LENGTH);
 
-            if (remainingPixels > 30) {
-                break;
-            }
+        // set the header.
+        setHeader(raster, cursor, rand);
 
+        // Set the ip address into the pixels
+        setIP(raster, cursor, octet, rand);
 
-        }
 
-        PixelCoordinate coord = new PixelCoordinate(img, x, y);
+        // Set the delimiter, there is always room for it
+        setDelimiter(raster, cursor, rand);
 
-        // set the header.
-        setHeader(img, coord);
+        return true;
+    }
 
-        // Set the ip address into the pixels
+    /**
+     * Writes the digits of an IP address, one digit per pixel, starting right after the header
+     *
+     * @param raster The pixel raster of the image to modify
+     * @param cursor On the first digit, it ends up on the pixel right after the last one
+     * @param octet  The four octets of the address, see parseIP()
+     * @param rand   The source of randomness for splitting the data between the channels
+     */
+    static void setIP(PixelRaster raster, PixelCursor cursor, int[] octet, EncodingRandom rand) {
         for (int i = 0; i < 4; i++) {
             int hundreds = octet[i] / 100;
-            setPixel(img, coord, hundreds);
+            setPixel(raster, cursor, hundreds, rand);
 
             int tens = (octet[i] % 100) / 10;
-            setPixel(img, coord, tens);
+            setPixel(raster, cursor, tens, rand);
 
             int ones = octet[i] % 10;
-            setPixel(img, coord, ones);
+            setPixel(raster, cursor, ones, rand);
         }
+    }
 
-
-        // Set the delimiter
-        if (setDelimiter(img, coord)) {
-            System.out.println("Set the delimteterererer");
+    /**
+     * Splits an IPv4 address into its four octets
+     *
+     * @param ipStr The IPv4 address in a standard string
+     * @return The four octets of the address
+     * @throws IllegalArgumentException If it isn't four numbers from 0 to 255 separated by dots
+     */
+    static int[] parseIP(String ipStr) {
+        int octet[] = new int[4];
+        int i = 0;
+        int from = 0;
+        while (true) {
+            int dot = ipStr.indexOf('.', from);
+            String subIP = dot < 0 ? ipStr.substring(from) : ipStr.substring(from, dot);
+            if (i == 4 || subIP.isEmpty() || subIP.length() > 3) {
+                throw new IllegalArgumentException("Not an IPv4 address: " + ipStr);
+            }
+            octet[i] = Integer.parseInt(subIP);
+            if (octet[i] < 0 || octet[i] > 255) {
+                throw new IllegalArgumentException("Not an IPv4 address: " + ipStr);
+            }
+            i++;
+            if (dot < 0) {
+                break;
+            }
+            from = dot + 1;
         }
-
-        return true;
+        if (i != 4) {
+            throw new IllegalArgumentException("Not an IPv4 address: " + ipStr);
+        }
+        return octet;
     }
 
     /**
@@ -237,106 +379,85 @@ public class Steganography {
      * a String. Right now the function is hard coded only to detect an IPv4 address and will fail for anything else.
      *
      * @param img The buffered image to modify
-     * @return Returns a string containing the IP that was hidden in the image. Otherwise it returns a null string
+     * @return Returns a string containing the IP that was hidden in the image. Otherwise it returns an empty string
      */
     public static String retrieveIP(BufferedImage img) {
+        return retrieveIP(PixelRaster.forReading(img));
+    }
 
-        PixelCoordinate coord = new PixelCoordinate(img);
-
-        boolean foundSecret = false;
-
-        while (!foundSecret && coord.inBounds()) {
-            PixelCoordinate tmpCoord = new PixelCoordinate(img, coord.x, coord.y);
-
-            if (getPixelData(img, coord) == 11) {
-
-                // flag to avoid second check
-                boolean stillValid = true;
-
-                for (int i = 0; i < 5; i++) {
-                    // check if the current pixel is valid
-                    if (getPixelData(img, tmpCoord) != 11) {
-                        stillValid = false;
-                        break;
-                    }
-                    // advance to the next pixel
-                    tmpCoord.nextPixel();
-                }
-
-                if (stillValid) {
-                    for (int i = 0; i < 5; i++) {
-                        if (getPixelData(img, tmpCoord) != 12) {
-                            stillValid = false;
-                        }
-                        tmpCoord.nextPixel();
-                    }
-
-                    // If we've passed all the tests and made it this far, the secret begins at the current pixel in
-                    // tmpCoord
-                    if (stillValid) {
-                        foundSecret = true;
-                    }
-                }
-            }
-
-            // Set the coordinate marker for the appropriate following action
-            if (foundSecret) {
-                coord.x = tmpCoord.x;
-                coord.y = tmpCoord.y;
-                break;
-            } else {
-
-                try {
-                    coord.nextPixel();
-                }
-                catch (IndexOutOfBoundsException e) {
-                    return "";
-                }
-            }
+    /**
+     * Raster version of retrieveIP()
+     *
+     * @param raster The pixel raster of the image to inspect
+     * @return Returns a string containing the IP that was hidden in the image. Otherwise it returns an empty string
+     */
+    public static String retrieveIP(PixelRaster raster) {
+        int index = findSecret(raster);
+        if (index < 0) {
+            return "";
         }
+        return readIP(raster, index);
+    }
 
+    /**
+     * Searches the raster for the header pattern. Only header positions that leave enough room for a whole IP
+     * address after them are considered.
+     *
+     * @param raster The pixel raster of the image to inspect
+     * @return The flat index of the first pixel after the header, or -1 if there is no header in the image
+     */
+    static int findSecret(PixelRaster raster) {
+        return findSecret(raster, 0, raster.getPixelCount());
+    }
 
-        if (!coord.inBounds()) {
-            // The pixel coordinate is out of bounds, there is nothing to find
-            System.out.println("The search for secrets has failed");
-            return "Found nothing!";
+    /**
+     * Searches part of the raster for the header pattern. The value of each pixel is decoded exactly once and fed to
+     * a HeaderMatcher, so this is a single linear pass however many pixels happen to sum to 11. Pixels past the end
+     * of the range are still read to finish off a header that starts inside it.
+     *
+     * @param raster The pixel raster of the image to inspect
+     * @param from   The flat index of the first header position to consider
+     * @param to     The flat index one past the last header position to consider
+     * @return The flat index of the first pixel after the header, or -1 if there is no header in the range
+     */
+    static int findSecret(PixelRaster raster, int from, int to) {
+        int lastStart = Math.min(to - 1, raster.getPixelCount() - HEADER_LENGTH - IP_LENGTH);
+        int end = lastStart + HEADER_LENGTH;
+
+        HeaderMatcher matcher = new HeaderMatcher();
+        for (int i = from; i < end; i++) {
+            if (matcher.feed(raster.nibbleSum(i))) {
+                return i + 1;
+            }
         }
+        return -1;
+    }
 
-
-        // Build the output string for the IP address
-        String outStr = "";
+    /**
+     * Builds the output string for the IP address stored starting at the given pixel
+     *
+     * @param raster The pixel raster of the image to inspect
+     * @param index  The flat index of the first digit of the IP address
+     * @return The IP address in a standard string
+     */
+    static String readIP(PixelRaster raster, int index) {
+        StringBuilder outStr = new StringBuilder(15);
 
         for (int j = 0; j < 4; j++) {
-            int octet = 0;
-
-            // restore hundreds
-            int digit = getPixelData(img, coord);
-            digit = digit * 100;
-            octet += digit;
-            coord.nextPixel();
-
-            // restore tens
-            digit = getPixelData(img, coord);
-            digit = digit * 10;
-            octet += digit;
-            coord.nextPixel();
 
-            // restore ones
-            digit = getPixelData(img, coord);
-            octet += digit;
-            coord.nextPixel();
-
-            outStr = outStr + Integer.toString(octet) + ".";
-
-        }
+            // restore hundreds, tens and ones
+            int octet = raster.nibbleSum(index) * 100;
+            octet += raster.nibbleSum(index + 1) * 10;
+            octet += raster.nibbleSum(index + 2);
+            index += 3;
 
-        // delete the last period from the ip
-        if (outStr.contains(".")) {
-            outStr = outStr.substring(0, outStr.lastIndexOf('.'));
+            if (j > 0) {
+                outStr.append('.');
+            }
+            outStr.append(octet);
         }
 
-        return outStr;
-
+        return outStr.toString();
     }
 
     /**
@@ -348,41 +469,36 @@ public class Steganography {
      * @return The integer data stored within the specified pixel
      */
     public static int getPixelData(BufferedImage img, int xCoord, int yCoord) {
+        return PixelRaster.nibbleSumOf(img.getRGB(xCoord, yCoord));
+    }
 
-        // resources needed to work with pixels
-        ColorModel cm = img.getColorModel();
-
-        int pixel = img.getRGB(xCoord, yCoord);
-        Color col = new Color(img.getRGB(xCoord, yCoord), cm.hasAlpha());
-
-        // pull the original data values of the pixel
-        int redVal = col.getRed();
-        int greenVal = col.getGreen();
-        int blueVal = col.getBlue();
-        int alphaVal = col.getAlpha();
-
-        redVal = redVal % 16;
-        greenVal = greenVal % 16;
-        blueVal = blueVal % 16;
-
-        int data = redVal + greenVal + blueVal;
-
-        return data;
-
+    /**
+     * A wrapper for the more explicit getPixelData() class, allows for the use of a PixelCursor. The cursor isn't
+     * moved
+     *
+     * @param img    The buffered image to modify
+     * @param cursor A PixelCursor used to keep track of the current location
+     * @return The integer data stored within the specified pixel, or -1 if the cursor is at the end of its range
+     */
+    public static int getPixelData(BufferedImage img, PixelCursor cursor) {
+        if (!cursor.hasNext()) {
+            return -1;
+        }
+        return getPixelData(img, cursor.x(), cursor.y());
     }
 
     /**
-     * A wrapper for the more explicit getPixelData() class, allows for the use of a PixelCoordinate object
+     * getPixelData() through a raster the caller holds on to. The cursor isn't moved
      *
-     * @param img   The buffered image to modify
-     * @param coord A PixelCoordinate object used to keep track of the current location
-     * @return The integer data stored within the specified pixel
+     * @param raster The pixel raster of the image to inspect
+     * @param cursor A PixelCursor used to keep track of the current location
+     * @return The integer data stored within the specified pixel, or -1 if the cursor is at the end of its range
      */
-    public static int getPixelData(BufferedImage img, PixelCoordinate coord) {
-        if (!coord.inBounds()) {
+    public static int getPixelData(PixelRaster raster, PixelCursor cursor) {
+        if (!cursor.hasNext()) {
             return -1;
         }
-        return getPixelData(img, coord.x, coord.y);
+        return raster.nibbleSum(cursor.index());
     }
 
 
@@ -391,6 +507,8 @@ public class Steganography {
         int width = img.getWidth();
         int size = height * width;
 
+        PixelRaster raster = PixelRaster.forReading(img);
+
         File outFile = new File("./pixeldata.txt");
         PrintStream ps = null;
         try {
@@ -402,8 +520,8 @@ public class Steganography {
         for (int y = 0; y < height; y++) {
             int offset = y * width;
             for (int x = 0; x < width; x++) {
-                int data = getPixelData(img, x, y);
                 int pixelNum = offset + x;
+                int data = raster.nibbleSum(pixelNum);
 
                 ps.printf("Pixel %3d == %2d%n", pixelNum, data);
             }
@@ -414,80 +532,3 @@ public class Steganography {
     }
 }
 
-
-/**
- * PixelCoordinate is a helper class for the Steganography class. It's main purpose is to keep track of the
- * current position being operated on from within the Steganography operations. It also holds a little information
- * about the image and can properly advance to the next pixel in the image
- */
-class PixelCoordinate {
-
-    /**
-     * Default constructor. Sets the coordinate value to (0,0).
-     *
-     * @param image The buffered image to that is being inspected
-     */
-    PixelCoordinate(BufferedImage image) {
-        img = image;
-
-        x = 0;
-        y = 0;
-        width = image.getWidth();
-        height = image.getHeight();
-
-    }
-
-    /**
-     * @param image  The buffered image to that is being inspected
-     * @param xCoord The X-coordinate of the pixel to be inspected
-     * @param yCoord The Y-coordinate of the pixel to be inspected
-     */
-    PixelCoordinate(BufferedImage image, int xCoord, int yCoord) {
-        img = image;
-        x = xCoord;
-        y = yCoord;
-        width = image.getWidth();
-        height = image.getHeight();
-        //System.out.println(image.toString());
-    }
-
-
-    BufferedImage img;
-    int x;
-    int y;
-    int width;
-    int height;
-
-    /**
-     * This function simply moves the PixelCoordinate object to the next pixel location. It handles wraparounds over
-     * image boundaries properly
-     *
-     * @return
-     */
-    public boolean nextPixel() {
-        //System.out.println("X: " + Integer.toString(x) + ", Y: " + Integer.toString(y) + ", advancing to ");
-        if (x >= width - 1) {
-            x = 0;
-            y++;
-            if (y >= height) {
-                throw new IndexOutOfBoundsException("Coordinates went off the image");
-            }
-        } else {
-            x++;
-        }
-        //System.out.println("X: " + x + ", Y: " + y + ".");
-        return true;
-    }
-
-    /**
-     * This function returns a boolean regarding if the current location of the pixel is in bounds or not
-     *
-     * @return
-     */
-    public boolean inBounds() {
-        if (height < y) return false;
-        if (width < x) return false;
-        return true;
-    }
-
-}
\ No newline at end of file
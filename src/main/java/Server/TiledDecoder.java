@@ -0,0 +1,293 @@
+package Server;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Decodes images straight from disk without ever loading the whole image, for images too big to fit in memory. The
+ * image is read a slice at a time and every pixel is fed through one HeaderMatcher, so a header that crosses from one
+ * slice into the next is still found. Memory use depends on the width of the image and the tile size, not the height.
+ * <p>
+ * PNGs are read one row at a time with the PngRowReader and QOIs with the QoiRowReader. Anything else, and the few
+ * PNG layouts the PngRowReader can't read, go
+ * through ImageIO a band of rows at a time with a source region. Some readers (JPEG for one) start decoding from the
+ * top of the image for every band, which trades time for the memory saved.
+ * <p>
+ * With a KeyedPlacement, the keyed pixels are picked up on the same pass and win over a header found the old way, the
+ * same as in the rest of the decoders.
+ */
+public class TiledDecoder {
+
+    /**
+     * Images with more pixels than this are decoded a tile at a time. Can be changed with -Dstega.tileThreshold
+     */
+    public static final int DEFAULT_THRESHOLD = Integer.getInteger("stega.tileThreshold", 16000000);
+
+    /**
+     * Roughly how many pixels are read from ImageIO at once. Can be changed with -Dstega.tilePixels
+     */
+    public static final int DEFAULT_TILE_PIXELS = Integer.getInteger("stega.tilePixels", 1 << 20);
+
+    /**
+     * Checks if an image is big enough to be worth decoding a tile at a time. Only the header of the file is read.
+     *
+     * @param file The image file
+     * @return True if the image has more pixels than the default threshold
+     */
+    public static boolean shouldTile(File file) {
+        return pixelCount(file) > DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * Reads the size of an image from the header of the file
+     *
+     * @param file The image file
+     * @return The number of pixels in the image, or -1 if ImageIO can't read the file
+     */
+    public static long pixelCount(File file) {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(iis);
+            if (reader == null) {
+                return -1;
+            }
+            try {
+                reader.setInput(iis, true, true);
+                return (long) reader.getWidth(0) * reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Decodes an image file a tile at a time
+     *
+     * @param file The image file
+     * @return The hidden IP with the STREAMED path
+     * @throws IOException If the file can't be read as an image
+     */
+    public static DecodeResult decode(File file) throws IOException {
+        return decode(file, null, DEFAULT_TILE_PIXELS);
+    }
+
+    /**
+     * Decodes an image file a tile at a time, checking the keyed pixels as well
+     *
+     * @param file      The image file
+     * @param placement The keyed pixels to check, may be null
+     * @return The hidden IP with the KEYED path if the keyed pixels held it, otherwise the STREAMED path
+     * @throws IOException If the file can't be read as an image
+     */
+    public static DecodeResult decode(File file, KeyedPlacement placement) throws IOException {
+        return decode(file, placement, DEFAULT_TILE_PIXELS);
+    }
+
+    /**
+     * decode() with a chosen tile size
+     *
+     * @param file       The image file
+     * @param placement  The keyed pixels to check, may be null
+     * @param tilePixels Roughly how many pixels to read from ImageIO at once. PNGs and QOIs are always read a row at
+     *                   a time
+     * @return The hidden IP with the KEYED path if the keyed pixels held it, otherwise the STREAMED path
+     * @throws IOException If the file can't be read as an image
+     */
+    public static DecodeResult decode(File file, KeyedPlacement placement, int tilePixels) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            PngRowReader png = PngRowReader.open(in);
+            if (png != null) {
+                try {
+                    return scanRows(png, placement);
+                } finally {
+                    png.close();
+                }
+            }
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            QoiRowReader qoi = QoiRowReader.open(in);
+            if (qoi != null) {
+                return scanRows(qoi, placement);
+            }
+        }
+        return scanTiles(file, placement, tilePixels);
+    }
+
+    private static DecodeResult scanRows(PngRowReader png, KeyedPlacement placement) throws IOException {
+        Scan scan = new Scan(png.getWidth(), png.getHeight(), placement);
+        int[] rgb = new int[png.getWidth()];
+        while (png.nextRow(rgb)) {
+            if (scan.feed(rgb, rgb.length)) {
+                break;
+            }
+        }
+        return scan.result();
+    }
+
+    private static DecodeResult scanRows(QoiRowReader qoi, KeyedPlacement placement) throws IOException {
+        Scan scan = new Scan(qoi.getWidth(), qoi.getHeight(), placement);
+        int[] rgb = new int[qoi.getWidth()];
+        while (qoi.nextRow(rgb)) {
+            if (scan.feed(rgb, rgb.length)) {
+                break;
+            }
+        }
+        return scan.result();
+    }
+
+    private static DecodeResult scanTiles(File file, KeyedPlacement placement, int tilePixels) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = iis == null ? null : readerFor(iis);
+            if (reader == null) {
+                throw new IOException("Can't read " + file + " as an image");
+            }
+
+            try {
+                reader.setInput(iis, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int tileRows = Math.max(1, tilePixels / width);
+
+                Scan scan = new Scan(width, height, placement);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int[] rgb = new int[width * Math.min(tileRows, height)];
+
+                for (int y = 0; y < height; y += tileRows) {
+                    int rows = Math.min(tileRows, height - y);
+                    param.setSourceRegion(new Rectangle(0, y, width, rows));
+                    BufferedImage tile = reader.read(0, param);
+
+                    // getRGB() gives the same values the whole image decoders see after PixelRaster.normalize()
+                    tile.getRGB(0, 0, width, rows, rgb, 0, width);
+                    if (scan.feed(rgb, width * rows)) {
+                        break;
+                    }
+
+                    // the next tile is decoded into this one, if the reader allows it
+                    if (tile.getHeight() == tileRows) {
+                        param.setDestination(tile);
+                    }
+                }
+                return scan.result();
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader readerFor(ImageInputStream iis) {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    /**
+     * The state of a search that is fed the pixels of an image in order, a slice at a time
+     */
+    private static class Scan {
+        private final HeaderMatcher matcher = new HeaderMatcher();
+        private final int[] digits = new int[Steganography.IP_LENGTH];
+
+        // -1 until a header is found, then the number of digits read after it
+        private int digitCount = -1;
+
+        // the flat index of the first pixel of the header, once one is found
+        private long header = -1;
+
+        // the flat index of the next pixel to be fed in
+        private long index;
+
+        // the keyed pixels sorted by flat index, and where each one goes in the payload
+        private final KeyedPlacement placement;
+        private final long[] keyed;
+        private final int[] keyedValues;
+        private int keyedCount;
+        private String keyedIP = "";
+        private int keyedHeader = -1;
+
+        Scan(int width, int height, KeyedPlacement placement) {
+            long pixelCount = (long) width * height;
+            if (placement != null && pixelCount >= KeyedPlacement.PAYLOAD_LENGTH && pixelCount <= Integer.MAX_VALUE) {
+                int[] at = placement.positions(width, height);
+
+                // index in the high bits, slot in the low ones, so sorting keeps them together
+                keyed = new long[at.length];
+                for (int i = 0; i < at.length; i++) {
+                    keyed[i] = (long) at[i] << 32 | i;
+                }
+                Arrays.sort(keyed);
+                keyedValues = new int[at.length];
+                keyedHeader = at[0];
+                this.placement = placement;
+            } else {
+                keyed = new long[0];
+                keyedValues = null;
+                this.placement = null;
+            }
+        }
+
+        /**
+         * Feeds the next pixels of the image
+         *
+         * @param rgb   The pixels in the default RGB color model
+         * @param count How many of them to feed
+         * @return True once nothing more needs to be read
+         */
+        boolean feed(int[] rgb, int count) {
+            for (int i = 0; i < count; i++, index++) {
+                int data = PixelRaster.nibbleSumOf(rgb[i]);
+
+                if (digitCount < 0) {
+                    if (matcher.feed(data)) {
+                        digitCount = 0;
+                        header = index + 1 - Steganography.HEADER_LENGTH;
+                    }
+                } else if (digitCount < digits.length) {
+                    digits[digitCount++] = data;
+                }
+
+                if (keyedCount < keyed.length && keyed[keyedCount] >>> 32 == index) {
+                    keyedValues[(int) keyed[keyedCount++]] = data;
+                    if (keyedCount == keyed.length) {
+                        keyedIP = placement.retrieveIP(keyedValues);
+                    }
+                }
+            }
+
+            // a keyed IP wins, so a header found the old way is only good once every keyed pixel has been seen
+            boolean keyedDone = keyedCount == keyed.length;
+            return keyedDone && (!keyedIP.isEmpty() || digitCount == digits.length);
+        }
+
+        DecodeResult result() {
+            if (!keyedIP.isEmpty()) {
+                return new DecodeResult(keyedIP, DecodeResult.KEYED, 1, keyedHeader);
+            }
+            if (digitCount < digits.length) {
+                return new DecodeResult("", DecodeResult.STREAMED, digitCount < 0 ? 0 : 1);
+            }
+
+            StringBuilder outStr = new StringBuilder(15);
+            for (int j = 0; j < 4; j++) {
+                int octet = digits[j * 3] * 100 + digits[j * 3 + 1] * 10 + digits[j * 3 + 2];
+                if (j > 0) {
+                    outStr.append('.');
+                }
+                outStr.append(octet);
+            }
+            return new DecodeResult(outStr.toString(), DecodeResult.STREAMED, 1,
+                    header <= Integer.MAX_VALUE ? (int) header : -1);
+        }
+    }
+}
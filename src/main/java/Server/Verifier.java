@@ -0,0 +1,138 @@
+package Server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decides when /stega reads the IP back out of the image it just made to make sure it can be found again. Reading a
+ * whole image back costs about as much as writing the IP into it, so there are a few ways to run it:
+ * <p>
+ * off      Never check anything
+ * <p>
+ * sampled  Check one response in every N, on the request thread
+ * <p>
+ * async    Check one response in every N on a background thread after the response has been built, so the request
+ * never waits for it. When the background thread falls behind, checks are dropped instead of queued forever.
+ * <p>
+ * Passes, failures and dropped checks are counted on /metrics, and failures are logged.
+ */
+public class Verifier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Verifier.class);
+
+    // how many images can wait for the background thread. Each one holds a whole decoded carrier
+    private static final int ASYNC_QUEUE = 8;
+
+    public enum Mode {
+        OFF, SAMPLED, ASYNC;
+
+        /**
+         * @param name The name of a mode, in any case
+         * @return The mode with that name
+         */
+        public static Mode of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Mode mode;
+    private final int every;
+    private final ThreadPoolExecutor background;
+    private final AtomicLong seen = new AtomicLong();
+
+    /**
+     * @param mode  When to check
+     * @param every Check one response in this many. Only used by sampled and async
+     */
+    public Verifier(Mode mode, int every) {
+        this.mode = mode;
+        this.every = Math.max(1, every);
+        if (mode == Mode.ASYNC) {
+            background = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(ASYNC_QUEUE), r -> {
+                Thread t = new Thread(r, "stega-verify");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+        } else {
+            background = null;
+        }
+    }
+
+    /**
+     * @return When this verifier checks
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Checks that an image gives back the IP that was written into it, if this response is one that gets checked.
+     * The decode must only touch things nobody else will modify, since in async mode it runs after the request is done.
+     *
+     * @param expected The IP that was written
+     * @param decode   Reads the IP back out of the image, null if nothing was found
+     */
+    public void verify(String expected, Supplier<String> decode) {
+        if (mode == Mode.OFF || seen.getAndIncrement() % every != 0) {
+            return;
+        }
+
+        if (mode == Mode.SAMPLED) {
+            check(expected, decode);
+            return;
+        }
+
+        try {
+            background.execute(() -> check(expected, decode));
+        } catch (RejectedExecutionException e) {
+            Metrics.VERIFY_DROPPED.increment();
+        }
+    }
+
+    private static void check(String expected, Supplier<String> decode) {
+        long start = System.nanoTime();
+        long allocated = Metrics.allocatedBytes();
+        String found;
+        try {
+            found = decode.get();
+        } catch (RuntimeException e) {
+            LOG.warn("Reading back the IP for " + expected + " failed", e);
+            found = null;
+        }
+        Metrics.VERIFY.record(start, allocated);
+
+        if (expected.equals(found)) {
+            Metrics.VERIFY_PASSES.increment();
+            LOG.debug("The hidden IP is: {}", found);
+        } else {
+            Metrics.VERIFY_FAILURES.increment();
+            LOG.warn("Wrote the IP {} but read back {}", expected, found);
+        }
+    }
+
+    /**
+     * @return How many checks are waiting for the background thread
+     */
+    public int getQueued() {
+        return background == null ? 0 : background.getQueue().size();
+    }
+
+    /**
+     * Stops the background thread once the checks it already has are done
+     */
+    public void shutdown() {
+        if (background != null) {
+            background.shutdown();
+        }
+    }
+}
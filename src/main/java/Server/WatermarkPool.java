@@ -0,0 +1,283 @@
+package Server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a few watermarked images per carrier ready to go so /stega doesn't have to do any real work on the request
+ * thread. A variant has its spot for the IP picked and the header already written, and everything around the rows
+ * holding the payload is already compressed. All a request has to do is write the twelve digits of the client's IP
+ * into the variant and send it off.
+ * <p>
+ * The rows holding the payload are sent as stored deflate blocks, which aren't compressed at all, so patching the IP
+ * in never runs the Deflater. That makes the PNG a couple of rows bigger than it has to be.
+ * <p>
+ * Every variant is used once. Taking one off the pool queues up a new one on the refill threads, so the pool is topped
+ * back up to its depth in the background. If a burst of requests empties the pool, the requests that miss fall back
+ * to encoding the image themselves.
+ */
+public class WatermarkPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatermarkPool.class);
+
+    // Number of pixels from the start of the header to the end of the delimiter
+    static final int PAYLOAD_PIXELS = Steganography.PAYLOAD_LENGTH;
+
+    private final int depth;
+    private final ExecutorService refill;
+
+    // the variants of each carrier, keyed by the path of the carrier
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong refillNanos = new AtomicLong();
+    private final AtomicLong maxRefillNanos = new AtomicLong();
+
+    /**
+     * @param depth   How many variants to keep ready per carrier
+     * @param threads How many threads to render new variants on
+     */
+    public WatermarkPool(int depth, int threads) {
+        this.depth = depth;
+        AtomicInteger count = new AtomicInteger();
+        refill = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "watermark-refill-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Takes a ready variant of a carrier off the pool and queues up a new one to replace it
+     *
+     * @param key     The path of the carrier
+     * @param carrier The cached carrier. Variants of an older version of the carrier are thrown out
+     * @return A variant that only needs the IP written into it, or null if none were ready
+     */
+    public Variant take(String key, CarrierCache.Carrier carrier) {
+        Slot slot = slots.compute(key, (k, old) -> old != null && old.carrier == carrier ? old : new Slot(carrier));
+
+        Variant variant = slot.ready.poll();
+        if (variant != null) {
+            slot.queued.decrementAndGet();
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+
+        topUp(slot);
+        return variant;
+    }
+
+    /**
+     * Queues up enough renders to get the slot back to its depth, counting the ones that are already queued
+     */
+    private void topUp(Slot slot) {
+        while (true) {
+            int queued = slot.queued.get();
+            if (queued >= depth) {
+                return;
+            }
+            if (slot.queued.compareAndSet(queued, queued + 1)) {
+                refill.execute(() -> {
+                    long start = System.nanoTime();
+                    long allocated = Metrics.allocatedBytes();
+                    try {
+                        slot.ready.add(render(slot.carrier, EncodingRandom.threadLocal()));
+                    } catch (RuntimeException e) {
+                        slot.queued.decrementAndGet();
+                        LOG.error("Couldn't render a watermark", e);
+                        return;
+                    }
+                    Metrics.REFILL.record(start, allocated);
+                    long took = System.nanoTime() - start;
+                    refills.incrementAndGet();
+                    refillNanos.addAndGet(took);
+                    maxRefillNanos.accumulateAndGet(took, Math::max);
+                });
+            }
+        }
+    }
+
+    /**
+     * Stops the refill threads. Variants already in the pool can still be taken
+     */
+    public void shutdown() {
+        refill.shutdownNow();
+    }
+
+    /**
+     * @return How many requests got a ready variant
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return How many requests found the pool empty
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return How many variants have been rendered
+     */
+    public long getRefills() {
+        return refills.get();
+    }
+
+    /**
+     * @return The average time it took to render a variant, in milliseconds
+     */
+    public double getMeanRefillMillis() {
+        long count = refills.get();
+        return count == 0 ? 0 : refillNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * @return The longest time it took to render a variant, in milliseconds
+     */
+    public double getMaxRefillMillis() {
+        return maxRefillNanos.get() / 1e6;
+    }
+
+    /**
+     * Renders a new variant of a carrier: picks the spot for the payload from the carrier's CarrierIndex, writes the
+     * header and compresses the rows around the payload
+     *
+     * @param carrier The carrier to render a variant of
+     * @param rand    Picks the spot and splits the header values between the colors
+     * @return A variant that only needs the IP written into it
+     */
+    public static Variant render(CarrierCache.Carrier carrier, EncodingRandom rand) {
+        BufferedImage master = carrier.getMaster();
+        PngTemplate template = carrier.getTemplate();
+        int width = master.getWidth();
+        int height = master.getHeight();
+        CarrierIndex capacity = carrier.getIndex();
+        if (!capacity.canHold()) {
+            throw new IllegalArgumentException("The carrier has no room for an IP");
+        }
+
+        int start = capacity.pickStart(rand);
+        int firstRow = start / width;
+        int lastRow = (start + PAYLOAD_PIXELS - 1) / width;
+        int blockRows = template.blockRows();
+        int firstBlock = firstRow / blockRows;
+        int lastBlock = lastRow / blockRows;
+
+        // the rows of the blocks that come before and after the payload rows are compressed now
+        int[] pixels = ((DataBufferInt) master.getRaster().getDataBuffer()).getData();
+        int blockStart = firstBlock * blockRows;
+        int blockEnd = Math.min((lastBlock + 1) * blockRows, height);
+        PngTemplate.Block before = firstRow > blockStart
+                ? template.compress(pixels, blockStart, firstRow - blockStart) : null;
+        PngTemplate.Block after = lastRow + 1 < blockEnd
+                ? template.compress(pixels, lastRow + 1, blockEnd - lastRow - 1) : null;
+
+        // the payload rows are copied out of the master and get the header now and the IP later
+        BufferedImage band = new BufferedImage(width, lastRow - firstRow + 1, master.getType());
+        int[] bandPixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, firstRow * width, bandPixels, 0, bandPixels.length);
+        PixelRaster raster = new PixelRaster(band);
+        int header = start - firstRow * width;
+        PixelCursor cursor = new PixelCursor(width, header, header + PAYLOAD_PIXELS);
+        Steganography.setHeader(raster, cursor, rand);
+        int index = cursor.index();
+
+        return new Variant(master, template, firstBlock, lastBlock, before, after, raster, bandPixels,
+                firstRow, index);
+    }
+
+    /**
+     * The variants of one version of a carrier
+     */
+    private static class Slot {
+        final CarrierCache.Carrier carrier;
+        final ConcurrentLinkedQueue<Variant> ready = new ConcurrentLinkedQueue<>();
+
+        // variants that are ready plus the ones still being rendered
+        final AtomicInteger queued = new AtomicInteger();
+
+        Slot(CarrierCache.Carrier carrier) {
+            this.carrier = carrier;
+        }
+    }
+
+    /**
+     * A carrier with the header written and everything but the payload rows compressed. A variant belongs to the one
+     * request that took it and can only be written once.
+     */
+    public static class Variant {
+        private final BufferedImage master;
+        private final PngTemplate template;
+        private final int firstBlock;
+        private final int lastBlock;
+        private final PngTemplate.Block before;
+        private final PngTemplate.Block after;
+        private final PixelRaster raster;
+        private final int[] bandPixels;
+        private final int firstRow;
+        private final int index;
+
+        Variant(BufferedImage master, PngTemplate template, int firstBlock, int lastBlock, PngTemplate.Block before,
+                PngTemplate.Block after, PixelRaster raster, int[] bandPixels, int firstRow, int index) {
+            this.master = master;
+            this.template = template;
+            this.firstBlock = firstBlock;
+            this.lastBlock = lastBlock;
+            this.before = before;
+            this.after = after;
+            this.raster = raster;
+            this.bandPixels = bandPixels;
+            this.firstRow = firstRow;
+            this.index = index;
+        }
+
+        /**
+         * Writes the IP into the variant and the finished PNG to the stream
+         *
+         * @param out   Where to write the PNG to
+         * @param ipStr The IPv4 address in a standard string
+         * @param rand  Splits the digits between the colors
+         * @throws IOException If writing to the stream fails
+         */
+        public void write(OutputStream out, String ipStr, EncodingRandom rand) throws IOException {
+            PixelCursor cursor = new PixelCursor(raster.getWidth(), index, index + Steganography.IP_LENGTH
+                    + Steganography.DELIMITER_LENGTH);
+            Steganography.setIP(raster, cursor, Steganography.parseIP(ipStr), rand);
+            Steganography.setDelimiter(raster, cursor, rand);
+
+            PngTemplate.Block payload = template.stored(bandPixels, 0, raster.getHeight());
+            template.write(out, firstBlock, lastBlock, before, payload, after);
+        }
+
+        /**
+         * Decodes the image the variant sent the way the decoder would, header search and all, so a header the
+         * carrier has ahead of the payload is caught too. Builds a whole copy of the carrier, so it is only meant for
+         * checking responses.
+         *
+         * @return The IP as it reads back from the variant, once write() has been called
+         */
+        public String hiddenIP() {
+            BufferedImage sent = CarrierCache.copy(master);
+            int[] pixels = ((DataBufferInt) sent.getRaster().getDataBuffer()).getData();
+            System.arraycopy(bandPixels, 0, pixels, firstRow * master.getWidth(), bandPixels.length);
+            return Steganography.retrieveIP(sent);
+        }
+    }
+}
@@ -1,14 +1,16 @@
 package Server;
 
 import java.awt.image.BufferedImage;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.file.Files;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import javax.imageio.ImageIO;
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.ServletException;
+import javax.servlet.http.Part;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 
@@ -16,7 +18,10 @@ import static spark.Spark.*;
 
 import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.util.resource.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import spark.ModelAndView;
+import spark.Request;
 import spark.Response;
 import spark.template.freemarker.FreeMarkerEngine;
 
@@ -34,16 +39,40 @@ import spark.template.freemarker.FreeMarkerEngine;
  * it through the included decoder to determine what the address the host who saved the file
  * is.
  * <p>
+ * 127.0.0.1:4567/stega/Husky.jpg  The same, with any of the carriers in the carrier directory. See CarrierCatalog.
+ * Clients that send Accept: image/qoi get a QOI instead of a PNG, which is a lot cheaper to encode. See OutputFormat.
+ * <p>
+ * 127.0.0.1:4567/metrics   How the server is doing, in the Prometheus text format. See Metrics.
+ * <p>
+ * POST 127.0.0.1:4567/decode  The decoder as a service. Post an image as the body, or any number of them as a
+ * multipart form, and get back what was found in each as JSON. See DecodeService.
+ * <p>
  * The images are located in /Proxy/src/main/resources
  * The templates for freemarker are located in /Proxy/src/main/resources/spark/template/freemarker
  */
 public class webServer {
 
+    private static final Logger LOG = LoggerFactory.getLogger(webServer.class);
+
+    // the routes whose requests are counted on /metrics
+    private static final String[] ROUTES = {"/hello", "/ip", "/index", "/picture.png", "/stega", "/test", "/dogs",
+            "/decoder.jar", "/metrics", "/stega/:carrier", "/decode"};
 
     // local port on which the server is to bind
     private int PORT = 4567;
-    Random rand = new Random();
     String filepath = "./src/main/resources/";
+    ServerOptions options = new ServerOptions();
+    CarrierCache carriers;
+    ResponseWriter writer;
+    KeyedPlacement placement;
+    RobustCodec robust;
+    WatermarkPool pool;
+    RequestExecutor workers;
+    CarrierCatalog catalog;
+    Verifier verifier;
+    PngEncoder png;
+    DecodeService decoder;
+    List<OutputFormat> formats;
 
     /**
      * The default constructor. Binds the server to port 4567
@@ -59,6 +88,20 @@ public class webServer {
     public webServer(int Port) {
         port(Port);
         PORT = Port;
+        options.port = Port;
+    }
+
+    /**
+     * The constructor for running a tuned server, see ServerOptions for everything that can be set
+     *
+     * @param Options The options to run the server with
+     */
+    public webServer(ServerOptions Options) {
+        this(Options.port);
+        options = Options;
+        if (Options.jettyThreads > 0) {
+            threadPool(Options.jettyThreads);
+        }
     }
 
     /**
@@ -68,12 +111,56 @@ public class webServer {
      */
     public boolean start() {
 
+        // decoded carrier images are kept around between requests
+        carriers = new CarrierCache(options.cacheMegabytes * 1024L * 1024L);
+
+        // the image routes build their responses in pooled buffers, on the workers if there are any
+        workers = options.workerThreads > 0 ? new RequestExecutor(options.workerThreads, options.workerQueue) : null;
+        writer = new ResponseWriter(new BufferPool(16), workers);
+
+        // with a key the IP is scattered over the keyed pixels instead of written in one run
+        placement = options.key == null ? null : new KeyedPlacement(options.key);
+
+        // the IP can also go into the brightness of the carrier's blocks, which survives JPEG compression
+        robust = options.robustStep > 0 ? new RobustCodec(options.robustStep) : null;
+
+        // pre-rendered watermarks for /stega. Keyed and robust IPs are spread over the whole image so they can't use
+        // the pool
+        pool = options.poolDepth > 0 && placement == null && robust == null
+                ? new WatermarkPool(options.poolDepth, options.poolThreads) : null;
+
+        // PNGs that aren't built from a carrier's template
+        png = new PngEncoder(options.pngLevel, PngEncoder.strategyOf(options.pngStrategy));
+
+        // what /stega can answer in, picked per request from the Accept header
+        formats = OutputFormat.parse(options.formats);
+
+        // every carrier in the carrier directory, decoded and indexed in the background
+        catalog = new CarrierCatalog(new File(options.carrierDir), carriers, options.carrierThreads);
+        catalog.warm();
+
+        // reading the IP back out of /stega responses, off the request path in async mode
+        verifier = new Verifier(options.verify, options.verifyEvery);
+
+        // the decoder for POST /decode, on its own threads
+        decoder = options.decodeThreads > 0 ? new DecodeService(options.decodeThreads, options.decodeQueue,
+                options.decodeBatch, placement, robust) : null;
+
         staticFileLocation("/res");
 
+        // count every request for /metrics
+        for (String route : ROUTES) {
+            Metrics.registerRoute(route);
+        }
+        before((request, response) -> {
+            String path = request.pathInfo();
+            Metrics.request(path != null && path.startsWith("/stega/") ? "/stega/:carrier" : path);
+        });
+
         // Hello world
         get("/hello", (request, response) -> {
 
-            int num = rand.nextInt(1000) + 1;
+            int num = ThreadLocalRandom.current().nextInt(1000) + 1;
 
             String helloWorld = "Hello World, your number is " + num;
 
@@ -103,10 +190,10 @@ public class webServer {
 
             String dogs = "dogs.jpg";
             map.put("dogs", "./dogs");
-            System.out.println(dogs);
+            LOG.debug(dogs);
 
             File dogFile = new File(filepath + dogs);
-            BufferedImage img = ImageIO.read(dogFile);
+            BufferedImage img = carriers.getMaster(dogFile);
             int height = img.getHeight();
             int width = img.getWidth();
 
@@ -127,35 +214,30 @@ public class webServer {
         // Test for doing a direct http get request to handle image manipulation
         get("/picture.png", (request, response) -> {
 
-            // Prep the HTTP response for an image file.
-            OutputStream outputStream = response.raw().getOutputStream();
-            response.raw().setContentType("image/png");
+            // The picture only changes when mc.jpg does, so clients can hold on to it
+            File inputImageFile = new File(filepath + "mc.jpg");
+            String etag = ResponseWriter.etagOf(inputImageFile, "-half-" + png.tag());
 
+            // The rows are compressed as they are sent
+            writer.stream(request, response, "image/png", etag, out -> {
 
-            // Open the Buffered Image to allow modification of it's contents
-            File inputImageFile = new File(filepath + "mc.jpg");
-            BufferedImage bufImg = null;
-            try {
-                bufImg = ImageIO.read(inputImageFile);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+                // Grab a private copy of the cached image to allow modification of it's contents
+                BufferedImage bufImg = carriers.checkout(inputImageFile);
 
-            // modify image to test code
-            int height = bufImg.getHeight();
-            int width = bufImg.getWidth();
-            for (int i = 0; i < height / 2; i++) {
-                for (int j = 0; j < width / 2; j++) {
-                    bufImg.setRGB(j, i, bufImg.getRGB(j, i) / 2);
+                // modify image to test code
+                int height = bufImg.getHeight();
+                int width = bufImg.getWidth();
+                for (int i = 0; i < height / 2; i++) {
+                    for (int j = 0; j < width / 2; j++) {
+                        bufImg.setRGB(j, i, bufImg.getRGB(j, i) / 2);
+                    }
                 }
-            }
 
-            // Write the image back to the HTTP response
-            try {
-                ImageIO.write(bufImg, "png", outputStream);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+                long start = System.nanoTime();
+                long allocated = Metrics.allocatedBytes();
+                png.write(bufImg, out);
+                Metrics.PNG.record(start, allocated);
+            });
 
             return response;
         });
@@ -166,36 +248,19 @@ public class webServer {
          * file.
          */
         get("/stega", (request, response) -> {
+            CarrierCatalog.Entry entry = catalog.get(options.stegaCarrier);
+            stega(request, response, entry != null ? entry.getFile() : new File(filepath + options.stegaCarrier));
+            return response;
+        });
 
-            // Build a string for the IP address we'll be encoding
-            String clientIP = request.ip();
-
-            // Prep the HTTP response for an image file.
-            OutputStream outputStream = response.raw().getOutputStream();
-            response.raw().setContentType("image/png");
-
-            // Open the Buffered Image to allow modification of it's contents
-            File inputImageFile = new File(filepath + "dogs.jpg");
-            BufferedImage img = null;
-            try {
-                img = ImageIO.read(inputImageFile);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            // Hide the given IPv4 address into the image
-            Steganography.hideIP(img, clientIP);
 
-            // Write the image back to the HTTP response
-            try {
-                ImageIO.write(img, "png", outputStream);
-            } catch (IOException e) {
-                e.printStackTrace();
+        // The same as /stega with any of the carriers in the catalog, like /stega/Husky.jpg
+        get("/stega/:carrier", (request, response) -> {
+            CarrierCatalog.Entry entry = catalog.get(request.params(":carrier"));
+            if (entry == null) {
+                halt(404, "No such carrier");
             }
-
-
-            System.out.println("The hidden IP is: " + Steganography.retrieveIP(img));
-
+            stega(request, response, entry.getFile());
             return response;
         });
 
@@ -218,25 +283,14 @@ public class webServer {
         // Retrieve an unmodified dog image
         get("/dogs", (request, response) -> {
 
-            // Prep the HTTP response for an image file.
-            OutputStream outputStream = response.raw().getOutputStream();
-            response.raw().setContentType("image/png");
-
-            // Open the Buffered Image to allow modification of it's contents
+            // The image isn't modified so the cached template can be written out as is
             File inputImageFile = new File(filepath + "dogs.jpg");
-            BufferedImage img = null;
-            try {
-                img = ImageIO.read(inputImageFile);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            String etag = ResponseWriter.etagOf(inputImageFile, "-png");
 
-            // Write the image back to the HTTP response
-            try {
-                ImageIO.write(img, "png", outputStream);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            writer.send(request, response, "image/png", etag, 1024 * 1024, out -> {
+                CarrierCache.Carrier carrier = carriers.get(inputImageFile);
+                carrier.getTemplate().write(out, carrier.getMaster(), -1, -1);
+            });
 
             return response;
 
@@ -255,16 +309,74 @@ public class webServer {
             */
 
 
-            response.type("application/jar");
+            writer.sendFile(request, response, dec, "application/jar");
 
-            BufferedOutputStream buffOut = new BufferedOutputStream(response.raw().getOutputStream());
+            return response;
+        });
 
-            byte[] byteArr = Files.readAllBytes(dec.toPath());
-            buffOut.write(byteArr);
-            buffOut.flush();
-            buffOut.close();
 
-            return response;
+        // Searches uploaded images for hidden IPs, either one image as the body or a multipart form of them
+        post("/decode", (request, response) -> {
+            if (decoder == null) {
+                halt(404, "Decoding is turned off");
+            }
+
+            // room for one image is reserved before the upload is read, so no more uploads are held in memory at
+            // once than the queue has room for. Forms with more images top it up once their parts are in
+            if (!decoder.reserve(1)) {
+                response.header("Retry-After", "1");
+                halt(503, "The decoder is busy");
+            }
+
+            int reserved = 1;
+            List<DecodeService.Upload> uploads = null;
+            try {
+                List<DecodeService.Upload> read = uploads(request, Math.min(options.decodeMaxImages,
+                        decoder.getDepth()));
+                if (read.size() > reserved) {
+                    if (!decoder.reserve(read.size() - reserved)) {
+                        response.header("Retry-After", "1");
+                        halt(503, "The decoder is busy");
+                    }
+                    reserved = read.size();
+                }
+                uploads = read;
+            } finally {
+                if (uploads == null) {
+                    decoder.release(reserved);
+                }
+            }
+            decoder.decode(uploads, reserved);
+
+            response.type("application/json");
+            return DecodeService.toJson(uploads);
+        });
+
+
+        // Everything Metrics knows, plus the state of the pools, for Prometheus to scrape
+        get("/metrics", (request, response) -> {
+            response.type("text/plain; version=0.0.4; charset=utf-8");
+
+            StringBuilder out = new StringBuilder(8192);
+            Metrics.write(out);
+            if (pool != null) {
+                Metrics.counter(out, "stega_watermark_pool_hits_total", "Requests served from a pre-rendered watermark",
+                        pool.getHits());
+                Metrics.counter(out, "stega_watermark_pool_misses_total", "Requests that found the pool empty",
+                        pool.getMisses());
+            }
+            if (workers != null) {
+                Metrics.gauge(out, "stega_workers_active", "Workers building a response", workers.getActive());
+                Metrics.gauge(out, "stega_workers_queued", "Responses waiting for a worker", workers.getQueued());
+            }
+            if (decoder != null) {
+                Metrics.gauge(out, "stega_decode_queued", "Uploaded images waiting for the decoder",
+                        decoder.getQueued());
+            }
+            if (verifier.getMode() == Verifier.Mode.ASYNC) {
+                Metrics.gauge(out, "stega_verify_queued", "Responses waiting to be checked", verifier.getQueued());
+            }
+            return out.toString();
         });
 
 
@@ -272,6 +384,171 @@ public class webServer {
     }
 
 
+    /**
+     * Sends a carrier with the client's IP hidden in it, the body of /stega and /stega/:carrier
+     *
+     * @param request        The HTTP request, the IP is taken from it
+     * @param response       The HTTP response to write the PNG to
+     * @param inputImageFile The carrier
+     * @throws IOException If the carrier can't be read or the client went away
+     */
+    private void stega(Request request, Response response, File inputImageFile) throws IOException {
+
+        // Build a string for the IP address we'll be encoding
+        String clientIP = request.ip();
+
+        // PNG unless the client asked for a cheaper format by name
+        OutputFormat format = OutputFormat.negotiate(request.headers("Accept"), formats);
+        if (formats.size() > 1) {
+            response.header("Vary", "Accept");
+        }
+
+        // All of the image work happens in the body, which runs on a worker if there are any
+        writer.send(request, response, format.getContentType(), null, 1024 * 1024, out -> {
+            CarrierCache.Carrier carrier = carriers.get(inputImageFile);
+
+            // Turn away carriers that have no room for an IP before a copy of them is made
+            if (placement == null && !carrier.getIndex().canHold()) {
+                throw new IllegalStateException(inputImageFile.getName() + " is too small to hold an IP");
+            }
+
+            // A pre-rendered watermark only needs the IP written into it, they are all PNGs
+            WatermarkPool.Variant variant = pool == null || format != OutputFormat.PNG ? null
+                    : pool.take(inputImageFile.getPath(), carrier);
+            if (variant != null) {
+                long start = System.nanoTime();
+                long allocated = Metrics.allocatedBytes();
+                variant.write(out, clientIP, EncodingRandom.threadLocal());
+                Metrics.PATCH.record(start, allocated);
+
+                verifier.verify(clientIP, variant::hiddenIP);
+                return;
+            }
+
+            // Otherwise grab a private copy of the cached image to allow modification of it's contents
+            long start = System.nanoTime();
+            long allocated = Metrics.allocatedBytes();
+            BufferedImage img = carrier.checkout();
+
+            // Hide the given IPv4 address into the image. The robust copy goes in first, the exact one written over
+            // it only touches a couple dozen pixels which the robust decoder's votes shrug off
+            PixelRaster raster = new PixelRaster(img);
+            EncodingRandom rand = EncodingRandom.threadLocal();
+            CarrierIndex index = carrier.getIndex();
+            if (robust != null && RobustCodec.canHold(raster.getWidth(), raster.getHeight())) {
+                robust.hideIP(raster, clientIP);
+
+                // Shifting the blocks can leave a header in the copy that the master doesn't have, and the decoder
+                // stops at the first header, so the exact IP has to go in ahead of whatever the copy has now
+                if (placement == null) {
+                    index = CarrierIndex.of(raster);
+                }
+            }
+            if (placement != null) {
+                placement.hideIP(raster, clientIP, rand);
+            } else {
+                Steganography.hideIP(raster, clientIP, index.pickStart(rand), rand);
+            }
+            Metrics.ENCODE.record(start, allocated);
+
+            // Write the image back to the HTTP response. Only the rows holding the IP need to be encoded again (all of
+            // them with a robust IP)
+            start = System.nanoTime();
+            allocated = Metrics.allocatedBytes();
+            format.write(carrier, img, raster, out);
+            format.getStage().record(start, allocated);
+
+            // The copy isn't touched again after this, so it can be read back after the response is done
+            verifier.verify(clientIP, () -> placement != null ? placement.retrieveIP(img)
+                    : ParallelDecoder.retrieveIP(img, options.parallelThreshold));
+        });
+    }
+
+
+    /**
+     * Reads the images of a /decode request into memory. A multipart form can hold several images, one per part, any
+     * other body is taken as a single image. Nothing is written to disk, Jetty is told to keep every part in memory.
+     * Requests that are too big get a 413, ones without any image or with an empty one a 400.
+     *
+     * @param request   The HTTP request
+     * @param maxImages The most images the request may hold
+     * @return The uploaded images, in the order they were sent
+     * @throws IOException If the upload can't be read
+     */
+    private List<DecodeService.Upload> uploads(Request request, int maxImages) throws IOException {
+        long maxBytes = options.decodeMaxMegabytes * 1024L * 1024L;
+        if (request.raw().getContentLengthLong() > maxBytes) {
+            halt(413, "At most " + options.decodeMaxMegabytes + " MB per request");
+        }
+
+        List<DecodeService.Upload> uploads = new ArrayList<>();
+        if (isMultipart(request)) {
+
+            // a size threshold above the size limit keeps every part in memory
+            request.raw().setAttribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement(
+                    System.getProperty("java.io.tmpdir"), maxBytes, maxBytes, (int) Math.min(maxBytes + 1,
+                    Integer.MAX_VALUE)));
+            Collection<Part> parts;
+            try {
+                parts = request.raw().getParts();
+            } catch (IllegalStateException e) {
+                halt(413, "At most " + options.decodeMaxMegabytes + " MB per request");
+                return uploads;
+            } catch (ServletException e) {
+                halt(400, "Can't read the form");
+                return uploads;
+            }
+
+            if (parts.size() > maxImages) {
+                halt(413, "At most " + maxImages + " images per request");
+            }
+            for (Part part : parts) {
+                String name = part.getSubmittedFileName() != null ? part.getSubmittedFileName() : part.getName();
+                try (InputStream in = part.getInputStream()) {
+                    uploads.add(new DecodeService.Upload(name, read(in, maxBytes)));
+                }
+            }
+        } else {
+            try (InputStream in = request.raw().getInputStream()) {
+                uploads.add(new DecodeService.Upload("body", read(in, maxBytes)));
+            }
+        }
+
+        if (uploads.isEmpty()) {
+            halt(400, "No image was uploaded");
+        }
+        for (DecodeService.Upload upload : uploads) {
+            if (upload.data.length == 0) {
+                halt(400, uploads.size() == 1 ? "No image was uploaded" : upload.name + " is empty");
+            }
+        }
+        return uploads;
+    }
+
+    private static boolean isMultipart(Request request) {
+        String type = request.contentType();
+        return type != null && type.toLowerCase(Locale.ROOT).startsWith("multipart/form-data");
+    }
+
+    /**
+     * Reads a stream into memory, answering 413 if it turns out to be longer than allowed
+     */
+    private byte[] read(InputStream in, long maxBytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            total += n;
+            if (total > maxBytes) {
+                halt(413, "At most " + options.decodeMaxMegabytes + " MB per request");
+            }
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+
     /**
      * This function isn't actually useful in this context. It encodes an image to Base64 so it can be sent easily over
      * HTTP without multiple requests. It works for dynamic modification of the images but is difficult to save